@@ -13,6 +13,10 @@ public enum PlatformClass {
     TOKEN_SET("consulo.language.ast.TokenSet"),
     LANGUAGE("consulo.language.Language"),
     LANGUAGE_VERSION("consulo.language.version.LanguageVersion"),
+    LANGUAGE_VERSION_UTIL("consulo.language.version.LanguageVersionUtil"),
+    LEXER("consulo.language.lexer.Lexer"),
+    PARSER_DEFINITION("consulo.language.parser.ParserDefinition"),
+    PSI_BUILDER_UTIL("consulo.language.parser.PsiBuilderUtil"),
     PSI_BUILDER("consulo.language.parser.PsiBuilder"),
     PSI_PARSER("consulo.language.parser.PsiParser"),
     PSI_ELEMENT_VISITOR("consulo.language.psi.PsiElementVisitor"),
@@ -20,7 +24,10 @@ public enum PlatformClass {
     STUB_BASED_PSI_ELEMENT_BASE("com.intellij.extapi.psi.StubBasedPsiElementBase"),
     ISTUB_ELEMENT_TYPE("consulo.language.psi.stub.IStubElementType"),
     GENERATED_PARSER_UTIL_BASE("consulo.language.impl.parser.GeneratedParserUtilBase"),
-    IELEMENT_TYPE("consulo.language.ast.IElementType");
+    IELEMENT_TYPE("consulo.language.ast.IElementType"),
+    IREPARSEABLE_ELEMENT_TYPE("consulo.language.ast.IReparseableElementType"),
+    PROJECT("consulo.project.Project"),
+    KEY("consulo.util.dataholder.Key");
 
     private final String myClassNameV3;
 
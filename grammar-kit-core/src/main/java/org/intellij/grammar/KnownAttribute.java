@@ -77,6 +77,8 @@ public class KnownAttribute<T> {
         create(true, String.class, "elementTypeFactory", (String)null);
     public static final KnownAttribute<String> TOKEN_TYPE_FACTORY =
         create(true, String.class, "tokenTypeFactory", (String)null);
+    public static final KnownAttribute<String> ELEMENT_TYPE_LANGUAGE =
+        create(true, String.class, "elementTypeLanguage", (String)null);
 
     public static final KnownAttribute<String> EXTENDS =
         create(false, String.class, "extends", PlatformClass.AST_WRAPPER_PSI_ELEMENT);
@@ -89,6 +91,8 @@ public class KnownAttribute<T> {
     public static final KnownAttribute<String> NAME = create(false, String.class, "name", (String)null);
 
     public static final KnownAttribute<Boolean> EXTRA_ROOT = create(false, Boolean.class, "extraRoot", false);
+    public static final KnownAttribute<Boolean> MEMOIZE = create(false, Boolean.class, "memoize", false);
+    public static final KnownAttribute<Boolean> REPARSEABLE = create(false, Boolean.class, "reparseable", false);
     public static final KnownAttribute<Boolean> RIGHT_ASSOCIATIVE =
         create(false, Boolean.class, "rightAssociative", false);
     public static final KnownAttribute<String> CONSUME_TOKEN_METHOD =
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.intellij.grammar.analysis;
+
+import consulo.annotation.access.RequiredReadAction;
+import consulo.application.util.concurrent.AppExecutorUtil;
+import consulo.container.boot.ContainerPathManager;
+import consulo.container.plugin.PluginDescriptor;
+import consulo.container.plugin.PluginManager;
+import consulo.document.FileDocumentManager;
+import consulo.logging.Logger;
+import consulo.util.dataholder.Key;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.intellij.grammar.psi.BnfFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * On-disk cache of the {@link BnfFirstTable} of grammar files under the system directory.
+ * <p/>
+ * There is one entry per grammar file. An entry is used only if the hash of the grammar text it was built for
+ * is equal to the hash of the current text, so unchanged grammars skip the analysis after a restart.
+ * Entries are written when the table of a saved grammar is computed and when a grammar with a computed table
+ * is saved. They are invalidated by every new grammar-kit build.
+ * <p/>
+ * Disk access and hashing never happen on the cached value path: {@link #preload(BnfFile)} reads an entry
+ * on a pooled thread when a grammar is opened and keeps it in the file user data, and the table computation
+ * only takes the loaded entry if the file has not changed since. Writes are done on a pooled thread as well.
+ * <p/>
+ * Only the FIRST bitsets are stored. {@link org.intellij.grammar.generator.RuleGraphHelper},
+ * {@link org.intellij.grammar.generator.ExpressionHelper} and the analyzer answers memoized by {@link BnfFirstTable}
+ * are keyed by PSI elements, which would have to be resolved again against the new tree.
+ */
+public class BnfAnalysisCache {
+    private static final Logger LOG = Logger.getInstance("org.intellij.grammar.analysis.BnfAnalysisCache");
+
+    private static final int FORMAT_VERSION = 2;
+    private static final String VERSION = FORMAT_VERSION + ":" + getBuildVersion();
+
+    private static final Key<Entry> LOADED_ENTRY_KEY = Key.create("LOADED_ENTRY_KEY");
+
+    private static class Entry {
+        final long stamp;
+        final byte[] data;
+
+        Entry(long stamp, byte[] data) {
+            this.stamp = stamp;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the entry of a saved grammar in background, see {@link #getLoadedFirstTable(BnfFile)}.
+     */
+    @RequiredReadAction
+    public static void preload(@Nonnull BnfFile file) {
+        VirtualFile virtualFile = file.getVirtualFile();
+        Path path = getCachePath(file, "first");
+        if (path == null || FileDocumentManager.getInstance().isFileModified(virtualFile)) {
+            return;
+        }
+        long stamp = file.getModificationStamp();
+        CharSequence text = file.getViewProvider().getContents();
+        AppExecutorUtil.getAppExecutorService().execute(() -> {
+            byte[] data = readEntry(path, text);
+            if (data != null) {
+                file.putUserData(LOADED_ENTRY_KEY, new Entry(stamp, data));
+            }
+        });
+    }
+
+    /**
+     * Returns the table loaded by {@link #preload(BnfFile)} if the file has not changed since, does no I/O.
+     */
+    @Nullable
+    @RequiredReadAction
+    public static BnfFirstTable getLoadedFirstTable(@Nonnull BnfFile file) {
+        Entry entry = file.getUserData(LOADED_ENTRY_KEY);
+        file.putUserData(LOADED_ENTRY_KEY, null);
+        if (entry == null || entry.stamp != file.getModificationStamp()) {
+            return null;
+        }
+        try {
+            return BnfFirstTable.read(file, new DataInputStream(new ByteArrayInputStream(entry.data)));
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the table of a saved grammar in background.
+     */
+    @RequiredReadAction
+    public static void saveFirstTable(@Nonnull BnfFile file, @Nonnull BnfFirstTable table) {
+        if (file.getVirtualFile() == null || FileDocumentManager.getInstance().isFileModified(file.getVirtualFile())) {
+            return;
+        }
+        writeFirstTable(file, table);
+    }
+
+    /**
+     * Stores the computed table of a grammar that is about to be saved, the PSI must be committed.
+     * Tables are not computed here: a grammar that was not analyzed since the last change is stored when it is.
+     */
+    @RequiredReadAction
+    public static void beforeDocumentSaving(@Nonnull BnfFile file) {
+        BnfFirstTable table = BnfFirstTable.getComputed(file);
+        if (table != null) {
+            writeFirstTable(file, table);
+        }
+    }
+
+    @RequiredReadAction
+    private static void writeFirstTable(@Nonnull BnfFile file, @Nonnull BnfFirstTable table) {
+        Path path = getCachePath(file, "first");
+        if (path == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            table.write(out);
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+            return;
+        }
+        CharSequence text = file.getViewProvider().getContents();
+        AppExecutorUtil.getAppExecutorService().execute(() -> writeEntry(path, text, bytes.toByteArray()));
+    }
+
+    @Nullable
+    private static byte[] readEntry(@Nonnull Path path, @Nonnull CharSequence text) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (!in.readUTF().equals(VERSION)) {
+                return null;
+            }
+            byte[] hash = new byte[in.readInt()];
+            in.readFully(hash);
+            if (!Arrays.equals(hash, sha256(text.toString()))) {
+                return null;
+            }
+            return in.readAllBytes();
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+            return null;
+        }
+    }
+
+    private static void writeEntry(@Nonnull Path path, @Nonnull CharSequence text, @Nonnull byte[] data) {
+        byte[] hash = sha256(text.toString());
+        if (hash == null) {
+            return;
+        }
+        Path temp = null;
+        try {
+            Files.createDirectories(path.getParent());
+            temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeUTF(VERSION);
+                out.writeInt(hash.length);
+                out.write(hash);
+                out.write(data);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        }
+        catch (IOException e) {
+            LOG.debug(e);
+        }
+        finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException e) {
+                    LOG.debug(e);
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private static Path getCachePath(@Nonnull BnfFile file, @Nonnull String kind) {
+        VirtualFile virtualFile = file.getVirtualFile();
+        if (virtualFile == null || !file.getViewProvider().isPhysical()) {
+            return null;
+        }
+        byte[] hash = sha256(virtualFile.getUrl());
+        if (hash == null) {
+            return null;
+        }
+        String name = HexFormat.of().formatHex(hash, 0, 16) + "." + kind;
+        return Paths.get(ContainerPathManager.get().getSystemPath(), "grammar-kit", "analysis", name);
+    }
+
+    @Nonnull
+    private static String getBuildVersion() {
+        PluginDescriptor plugin = PluginManager.getPlugin(BnfAnalysisCache.class);
+        String version = plugin == null ? null : plugin.getVersion();
+        return version == null ? "" : version;
+    }
+
+    @Nullable
+    private static byte[] sha256(@Nonnull String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+}
@@ -4,6 +4,7 @@
 
 package org.intellij.grammar.analysis;
 
+import consulo.annotation.access.RequiredReadAction;
 import consulo.application.util.function.CommonProcessors;
 import consulo.language.ast.IElementType;
 import consulo.language.psi.PsiElement;
@@ -28,6 +29,7 @@ import org.intellij.grammar.psi.impl.GrammarUtil.FakeBnfExpression;
 import jakarta.annotation.Nonnull;
 
 import java.util.*;
+import java.util.function.BiConsumer;
 
 import static consulo.util.collection.ContainerUtil.union;
 
@@ -45,10 +47,13 @@ public class BnfFirstNextAnalyzer {
     public static final BnfExpression BNF_MATCHES_NOTHING = new FakeBnfExpression(MATCHES_NOTHING);
     public static final BnfExpression BNF_MATCHES_ANY = new FakeBnfExpression(MATCHES_ANY);
 
+    static final int CONFIGURATION_COUNT = 8; // see getConfiguration()
+
     private boolean myBackward;
     private boolean myPublicRuleOpaque;
     private boolean myPredicateLookAhead;
     private Condition<PsiElement> myParentFilter;
+    private BiConsumer<BnfRule, Set<BnfExpression>> myCycleListener;
 
     public BnfFirstNextAnalyzer setBackward(boolean backward) {
         myBackward = backward;
@@ -70,25 +75,99 @@ public class BnfFirstNextAnalyzer {
         return this;
     }
 
+    /**
+     * Reports every FIRST walk cut at a rule already on the path, together with the expressions of the rules
+     * on the path in walk order, starting with the expression of the rule passed to {@link #calcFirst(BnfRule)}.
+     * Answers of an analyzer with a listener are not memoized.
+     */
+    BnfFirstNextAnalyzer setCycleListener(BiConsumer<BnfRule, Set<BnfExpression>> cycleListener) {
+        myCycleListener = cycleListener;
+        return this;
+    }
+
     public Set<BnfExpression> calcFirst(@Nonnull BnfRule rule) {
-        Set<BnfExpression> visited = new HashSet<>();
+        BnfFirstTable table = getTable(rule);
+        if (table != null) {
+            return new HashSet<>(table.getFirst(getConfiguration(), rule, () -> Collections.unmodifiableSet(calcFirstUncached(rule))));
+        }
+        return calcFirstUncached(rule);
+    }
+
+    private Set<BnfExpression> calcFirstUncached(@Nonnull BnfRule rule) {
+        Set<BnfExpression> visited = new LinkedHashSet<>(); // path order for the cycle listener
         BnfExpression expression = rule.getExpression();
         visited.add(expression);
         return calcFirstInner(expression, new HashSet<>(), visited);
     }
 
+    /**
+     * Same as {@code asStrings(calcFirst(rule))}, answered from the file-wide {@link BnfFirstTable}
+     * when this analyzer is in its default configuration.
+     */
+    @RequiredReadAction
+    public Set<String> calcFirstAsStrings(@Nonnull BnfRule rule) {
+        if (!myBackward && !myPublicRuleOpaque && !myPredicateLookAhead && myParentFilter == null) {
+            Set<String> first = BnfFirstTable.getCached((BnfFile)rule.getContainingFile()).getFirst(rule);
+            if (first != null) {
+                return new TreeSet<>(first);
+            }
+        }
+        return asStrings(calcFirst(rule));
+    }
+
     public Set<BnfExpression> calcFirst(@Nonnull BnfExpression expressions) {
+        BnfFirstTable table = getTable(expressions);
+        if (table != null) {
+            return new HashSet<>(table.getFirst(getConfiguration(), expressions,
+                () -> Collections.unmodifiableSet(calcFirstInner(expressions, new HashSet<>(), new HashSet<>()))));
+        }
         return calcFirstInner(expressions, new HashSet<>(), new HashSet<>());
     }
 
     public Map<BnfExpression, BnfExpression> calcNext(@Nonnull BnfRule targetRule) {
-        return calcNextInner(targetRule.getExpression(), new HashMap<>(), new HashSet<>());
+        return calcNext(targetRule.getExpression());
+    }
+
+    /**
+     * Same as {@code asStrings(calcNext(rule).keySet())}, answered from the file-wide {@link BnfFirstTable}
+     * when this analyzer is in its default configuration.
+     */
+    @RequiredReadAction
+    public Set<String> calcNextAsStrings(@Nonnull BnfRule rule) {
+        if (!myBackward && !myPublicRuleOpaque && !myPredicateLookAhead && myParentFilter == null) {
+            Set<String> next = BnfFirstTable.getCached((BnfFile)rule.getContainingFile()).getNext(rule);
+            if (next != null) {
+                return new TreeSet<>(next);
+            }
+        }
+        return asStrings(calcNext(rule).keySet());
     }
 
     public Map<BnfExpression, BnfExpression> calcNext(@Nonnull BnfExpression targetExpression) {
+        BnfFirstTable table = getTable(targetExpression);
+        if (table != null) {
+            return new HashMap<>(table.getNext(getConfiguration(), targetExpression,
+                () -> Collections.unmodifiableMap(calcNextInner(targetExpression, new HashMap<>(), new HashSet<>()))));
+        }
         return calcNextInner(targetExpression, new HashMap<>(), new HashSet<>());
     }
 
+    private int getConfiguration() {
+        return (myBackward ? 1 : 0) | (myPublicRuleOpaque ? 2 : 0) | (myPredicateLookAhead ? 4 : 0);
+    }
+
+    /**
+     * Returns the table memoizing answers for the element, {@code null} if the answers may not be shared:
+     * a parent filter is an arbitrary condition, fake expressions belong to no file.
+     */
+    @Nullable
+    private BnfFirstTable getTable(@Nonnull PsiElement element) {
+        if (myParentFilter != null || myCycleListener != null || element instanceof FakeBnfExpression) {
+            return null;
+        }
+        return element.getContainingFile() instanceof BnfFile file ? BnfFirstTable.getCached(file) : null;
+    }
+
     private Map<BnfExpression, BnfExpression> calcNextInner(
         @Nonnull BnfExpression targetExpression,
         Map<BnfExpression, BnfExpression> result,
@@ -238,6 +317,9 @@ public class BnfFirstNextAnalyzer {
                     !visited.add(ruleExpression)) {
                     if (!(ParserGeneratorUtil.Rule.firstNotTrivial(rule) instanceof BnfPredicate)) {
                         result.add(expression);
+                        if (myCycleListener != null && visited.contains(ruleExpression)) {
+                            myCycleListener.accept(rule, visited);
+                        }
                     }
                 }
                 else {
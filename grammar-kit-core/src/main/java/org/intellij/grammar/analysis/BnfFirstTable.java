@@ -0,0 +1,450 @@
+/*
+ * Copyright 2011-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.intellij.grammar.analysis;
+
+import consulo.annotation.access.RequiredReadAction;
+import consulo.application.util.CachedValue;
+import consulo.application.util.CachedValueProvider;
+import consulo.application.util.CachedValuesManager;
+import consulo.application.util.function.CommonProcessors;
+import consulo.language.ast.IElementType;
+import consulo.language.psi.PsiElement;
+import consulo.util.dataholder.Key;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.intellij.grammar.generator.ParserGeneratorUtil;
+import org.intellij.grammar.psi.*;
+import org.intellij.grammar.psi.impl.GrammarUtil;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * File-wide FIRST, FOLLOW and nullable sets of all rules.
+ * <p/>
+ * Rules and FIRST elements get dense ids, nullable rules are found by a fixpoint iteration,
+ * FIRST sets are stored as bitsets per rule together with the rules each rule may start with.
+ * A query then is a union over the transitive closure instead of a recursive walk over the grammar.
+ * <p/>
+ * Answers are the same as {@code asStrings(calcFirst(rule))} of a {@link BnfFirstNextAnalyzer} in its default configuration.
+ * Rules that may start with an external rule, an external expression or a meta rule, and rules that may start
+ * with a left-recursive rule are answered by the analyzer instead: it cuts such a walk at the first rule repeated
+ * on its path, so both the rule names it reports and the nullability of the rules inside the cycle depend on the walk order.
+ * <p/>
+ * The table also memoizes every {@link BnfFirstNextAnalyzer#calcFirst} and {@link BnfFirstNextAnalyzer#calcNext}
+ * answer without a parent filter, per analyzer configuration, so each of them is computed once per file modification.
+ * <p/>
+ * Bitsets of physical files are stored in {@link BnfAnalysisCache} and reused for the same grammar text,
+ * memoized answers are kept in memory only.
+ *
+ * @see BnfFirstNextAnalyzer#calcFirstAsStrings(BnfRule)
+ */
+public class BnfFirstTable {
+    private static final Key<CachedValue<BnfFirstTable>> FIRST_TABLE_KEY = Key.create("FIRST_TABLE_KEY");
+
+    private final BnfFile myFile;
+    private final List<BnfRule> myRules;
+    private final Map<BnfRule, Integer> myRuleIds = new HashMap<>();
+    private final List<String> myElements = new ArrayList<>();
+    private final Map<String, Integer> myElementIds = new HashMap<>();
+
+    private final BitSet[] myFirst;     // rule id -> ids of FIRST elements of the rule itself
+    private final BitSet[] myLeftCalls; // rule id -> ids of rules the rule may start with
+    private final BitSet[] myReach;     // rule id -> transitive closure of myLeftCalls
+    private final BitSet myNullable = new BitSet();
+    private final BitSet myUnsupported = new BitSet();
+    private final BitSet myLeftRecursive = new BitSet(); // rules that may start with themselves
+    private final Map<BnfRule, Set<BnfExpression>> myPinned = new HashMap<>();
+    private boolean myExternalSeen;
+
+    // analyzer configuration -> rule or expression -> answer
+    private final List<Map<PsiElement, Set<BnfExpression>>> myFirstMemo = newMemo();
+    private final List<Map<PsiElement, Map<BnfExpression, BnfExpression>>> myNextMemo = newMemo();
+    private final Map<BnfRule, Set<String>> myFirstStrings = new ConcurrentHashMap<>();
+    private final Map<BnfRule, Set<String>> myNextStrings = new ConcurrentHashMap<>();
+
+    @RequiredReadAction
+    public static BnfFirstTable getCached(final BnfFile file) {
+        CachedValue<BnfFirstTable> value = file.getUserData(FIRST_TABLE_KEY);
+        if (value == null) {
+            file.putUserData(FIRST_TABLE_KEY, value = CachedValuesManager.getManager(file.getProject()).createCachedValue(
+                () -> {
+                    BnfFirstTable table = BnfAnalysisCache.getLoadedFirstTable(file);
+                    if (table == null) {
+                        BnfAnalysisCache.saveFirstTable(file, table = new BnfFirstTable(file));
+                    }
+                    return new CachedValueProvider.Result<>(table, file);
+                }, false));
+        }
+        return value.getValue();
+    }
+
+    /**
+     * Returns the cached table if it is up to date, does not compute it.
+     */
+    @Nullable
+    @RequiredReadAction
+    static BnfFirstTable getComputed(@Nonnull BnfFile file) {
+        CachedValue<BnfFirstTable> value = file.getUserData(FIRST_TABLE_KEY);
+        return value != null && value.hasUpToDateValue() ? value.getValue() : null;
+    }
+
+    @RequiredReadAction
+    public BnfFirstTable(@Nonnull BnfFile file) {
+        myFile = file;
+        myRules = file.getRules();
+        int size = myRules.size();
+        for (int i = 0; i < size; i++) {
+            myRuleIds.putIfAbsent(myRules.get(i), i);
+        }
+        myFirst = new BitSet[size];
+        myLeftCalls = new BitSet[size];
+        myReach = new BitSet[size];
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int i = 0; i < size; i++) {
+                if (!myNullable.get(i) && collect(myRules.get(i).getExpression(), null, null)) {
+                    myNullable.set(i);
+                    changed = true;
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            myFirst[i] = new BitSet();
+            myLeftCalls[i] = new BitSet();
+            BnfRule rule = myRules.get(i);
+            myExternalSeen = false;
+            collect(rule.getExpression(), myFirst[i], myLeftCalls[i]);
+            if (myExternalSeen || ParserGeneratorUtil.Rule.isExternal(rule) || ParserGeneratorUtil.Rule.isMeta(rule)) {
+                myUnsupported.set(i);
+            }
+            myReach[i] = (BitSet)myLeftCalls[i].clone();
+        }
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (int i = 0; i < size; i++) {
+                BitSet reach = myReach[i];
+                int cardinality = reach.cardinality();
+                for (int j = reach.nextSetBit(0); j >= 0; j = reach.nextSetBit(j + 1)) {
+                    if (j != i) {
+                        reach.or(myReach[j]);
+                    }
+                }
+                changed |= reach.cardinality() != cardinality;
+            }
+        }
+        initLeftRecursive();
+    }
+
+    private BnfFirstTable(@Nonnull BnfFile file, @Nonnull List<String> elements, @Nonnull BitSet[] first,
+                          @Nonnull BitSet[] leftCalls, @Nonnull BitSet[] reach, @Nonnull BitSet nullable, @Nonnull BitSet unsupported) {
+        myFile = file;
+        myRules = file.getRules();
+        for (int i = 0; i < myRules.size(); i++) {
+            myRuleIds.putIfAbsent(myRules.get(i), i);
+        }
+        for (String element : elements) {
+            myElementIds.put(element, myElements.size());
+            myElements.add(element);
+        }
+        myFirst = first;
+        myLeftCalls = leftCalls;
+        myReach = reach;
+        myNullable.or(nullable);
+        myUnsupported.or(unsupported);
+        initLeftRecursive();
+    }
+
+    private static <T> List<Map<PsiElement, T>> newMemo() {
+        List<Map<PsiElement, T>> result = new ArrayList<>(BnfFirstNextAnalyzer.CONFIGURATION_COUNT);
+        for (int i = 0; i < BnfFirstNextAnalyzer.CONFIGURATION_COUNT; i++) {
+            result.add(new ConcurrentHashMap<>());
+        }
+        return result;
+    }
+
+    private void initLeftRecursive() {
+        for (int i = 0; i < myReach.length; i++) {
+            if (myReach[i].get(i)) {
+                myLeftRecursive.set(i);
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #write(DataOutput)}, returns {@code null} if it does not match the file rules.
+     */
+    @Nullable
+    @RequiredReadAction
+    static BnfFirstTable read(@Nonnull BnfFile file, @Nonnull DataInput in) throws IOException {
+        List<BnfRule> rules = file.getRules();
+        int size = in.readInt();
+        if (size != rules.size()) {
+            return null;
+        }
+        for (BnfRule rule : rules) {
+            if (!in.readUTF().equals(rule.getName())) {
+                return null;
+            }
+        }
+        List<String> elements = new ArrayList<>();
+        for (int i = 0, count = in.readInt(); i < count; i++) {
+            elements.add(in.readUTF());
+        }
+        BitSet[] first = new BitSet[size];
+        BitSet[] leftCalls = new BitSet[size];
+        BitSet[] reach = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            first[i] = readBitSet(in);
+            leftCalls[i] = readBitSet(in);
+            reach[i] = readBitSet(in);
+        }
+        return new BnfFirstTable(file, elements, first, leftCalls, reach, readBitSet(in), readBitSet(in));
+    }
+
+    void write(@Nonnull DataOutput out) throws IOException {
+        out.writeInt(myRules.size());
+        for (BnfRule rule : myRules) {
+            out.writeUTF(rule.getName());
+        }
+        out.writeInt(myElements.size());
+        for (String element : myElements) {
+            out.writeUTF(element);
+        }
+        for (int i = 0; i < myRules.size(); i++) {
+            writeBitSet(out, myFirst[i]);
+            writeBitSet(out, myLeftCalls[i]);
+            writeBitSet(out, myReach[i]);
+        }
+        writeBitSet(out, myNullable);
+        writeBitSet(out, myUnsupported);
+    }
+
+    private static BitSet readBitSet(DataInput in) throws IOException {
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private static void writeBitSet(DataOutput out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Returns FIRST set of the rule in {@link BnfFirstNextAnalyzer#asStrings(Set)} form,
+     * or {@code null} if the rule does not belong to the file.
+     */
+    @Nullable
+    @RequiredReadAction
+    public Set<String> getFirst(@Nonnull BnfRule rule) {
+        Integer id = myRuleIds.get(rule);
+        if (id == null || myRules.get(id) != rule) {
+            return null;
+        }
+        Set<String> result = myFirstStrings.get(rule);
+        if (result == null) {
+            result = Collections.unmodifiableSet(calcFirst(rule, id));
+            Set<String> prev = myFirstStrings.putIfAbsent(rule, result);
+            result = prev == null ? result : prev;
+        }
+        return result;
+    }
+
+    @Nonnull
+    @RequiredReadAction
+    private Set<String> calcFirst(@Nonnull BnfRule rule, int id) {
+        if (!isTabulated(rule) || myLeftRecursive.get(id) || myReach[id].intersects(myLeftRecursive)) {
+            BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+            return analyzer.asStrings(analyzer.calcFirst(rule));
+        }
+        // without cycles the analyzer walk never stops early, so it visits exactly the reached rules
+        BitSet elements = (BitSet)myFirst[id].clone();
+        BitSet rules = myReach[id];
+        for (int i = rules.nextSetBit(0); i >= 0; i = rules.nextSetBit(i + 1)) {
+            elements.or(myFirst[i]);
+        }
+        Set<String> result = new TreeSet<>();
+        for (int i = elements.nextSetBit(0); i >= 0; i = elements.nextSetBit(i + 1)) {
+            result.add(myElements.get(i));
+        }
+        if (myNullable.get(id)) {
+            result.add(BnfFirstNextAnalyzer.MATCHES_EOF);
+        }
+        return result;
+    }
+
+    /**
+     * Returns FOLLOW set of the rule in {@link BnfFirstNextAnalyzer#asStrings(Set)} form,
+     * i.e. {@code asStrings(calcNext(rule).keySet())} of the analyzer in its default configuration,
+     * or {@code null} if the rule does not belong to the file.
+     */
+    @Nullable
+    @RequiredReadAction
+    public Set<String> getNext(@Nonnull BnfRule rule) {
+        Integer id = myRuleIds.get(rule);
+        if (id == null || myRules.get(id) != rule) {
+            return null;
+        }
+        Set<String> result = myNextStrings.get(rule);
+        if (result == null) {
+            BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+            result = Collections.unmodifiableSet(analyzer.asStrings(analyzer.calcNext(rule).keySet()));
+            Set<String> prev = myNextStrings.putIfAbsent(rule, result);
+            result = prev == null ? result : prev;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the memoized {@code calcFirst} answer of the analyzer configuration for a rule or an expression.
+     */
+    @Nonnull
+    Set<BnfExpression> getFirst(int configuration, @Nonnull PsiElement target, @Nonnull Supplier<Set<BnfExpression>> analyzer) {
+        return memoize(myFirstMemo.get(configuration), target, analyzer);
+    }
+
+    /**
+     * Returns the memoized {@code calcNext} answer of the analyzer configuration for a rule or an expression.
+     */
+    @Nonnull
+    Map<BnfExpression, BnfExpression> getNext(
+        int configuration,
+        @Nonnull PsiElement target,
+        @Nonnull Supplier<Map<BnfExpression, BnfExpression>> analyzer
+    ) {
+        return memoize(myNextMemo.get(configuration), target, analyzer);
+    }
+
+    @Nonnull
+    private static <T> T memoize(@Nonnull Map<PsiElement, T> memo, @Nonnull PsiElement target, @Nonnull Supplier<T> analyzer) {
+        // not computeIfAbsent: the analyzer may query the same table recursively
+        T result = memo.get(target);
+        if (result == null) {
+            result = analyzer.get();
+            T prev = memo.putIfAbsent(target, result);
+            result = prev == null ? result : prev;
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether FIRST set of the rule is tabulated, i.e. the rule may not start with an external or a meta rule.
+     */
+    public boolean isTabulated(@Nonnull BnfRule rule) {
+        Integer id = myRuleIds.get(rule);
+        return id != null && myRules.get(id) == rule && !myUnsupported.get(id) && !myReach[id].intersects(myUnsupported);
+    }
+
+    /**
+     * Returns the rules the rule may start with, as ids in {@link BnfFile#getRules()}.
+     * Nullable prefixes are found by a fixpoint iteration, so a rule may start with more rules
+     * than {@link BnfFirstNextAnalyzer} reports inside left-recursive cycles, never with fewer.
+     */
+    @Nonnull
+    BitSet getLeftCalls(int ruleId) {
+        return myLeftCalls[ruleId];
+    }
+
+    public boolean isNullable(@Nonnull BnfRule rule) {
+        Integer id = myRuleIds.get(rule);
+        return id != null && myNullable.get(id);
+    }
+
+    /**
+     * Mirrors {@code BnfFirstNextAnalyzer.calcFirstInner} without descending into referenced rules:
+     * FIRST elements go to {@code first}, referenced rules go to {@code leftCalls}.
+     * Both are {@code null} during the nullable fixpoint iteration.
+     *
+     * @return whether the expression may match empty input
+     */
+    @RequiredReadAction
+    private boolean collect(@Nullable BnfExpression expression, @Nullable BitSet first, @Nullable BitSet leftCalls) {
+        if (expression instanceof BnfLiteralExpression) {
+            addElement(first, BnfFirstNextAnalyzer.asString(expression));
+            return false;
+        }
+        else if (expression instanceof BnfReferenceOrToken) {
+            BnfRule rule = myFile.getRule(expression.getText());
+            if (rule == null) {
+                addElement(first, BnfFirstNextAnalyzer.asString(expression));
+                return false;
+            }
+            int id = myRuleIds.get(rule);
+            if (leftCalls != null) {
+                leftCalls.set(id);
+            }
+            return myNullable.get(id);
+        }
+        else if (expression instanceof BnfParenthesized) {
+            boolean nullable = collect(((BnfParenthesized)expression).getExpression(), first, leftCalls);
+            return nullable || expression instanceof BnfParenOptExpression;
+        }
+        else if (expression instanceof BnfChoice) {
+            boolean nullable = false;
+            for (BnfExpression child : ((BnfChoice)expression).getExpressionList()) {
+                nullable |= collect(child, first, leftCalls);
+            }
+            return nullable;
+        }
+        else if (expression instanceof BnfSequence) {
+            List<BnfExpression> children = ((BnfSequence)expression).getExpressionList();
+            if (children.isEmpty()) {
+                return true;
+            }
+            Set<BnfExpression> pinned = myPinned.computeIfAbsent(ParserGeneratorUtil.Rule.of(children.get(0)), rule -> {
+                Set<BnfExpression> result = new HashSet<>();
+                GrammarUtil.processPinnedExpressions(rule, new CommonProcessors.CollectProcessor<>(result));
+                return result;
+            });
+            boolean matchesEof = false;
+            boolean pinApplied = false;
+            boolean nullable = true;
+            for (BnfExpression child : children) {
+                if (!nullable) {
+                    break;
+                }
+                matchesEof |= pinApplied;
+                nullable = collect(child, first, leftCalls);
+                pinApplied |= pinned.contains(child);
+            }
+            return nullable || matchesEof;
+        }
+        else if (expression instanceof BnfQuantified) {
+            boolean nullable = collect(((BnfQuantified)expression).getExpression(), first, leftCalls);
+            IElementType effectiveType = ParserGeneratorUtil.getEffectiveType(expression);
+            return nullable || effectiveType == BnfTypes.BNF_OP_OPT || effectiveType == BnfTypes.BNF_OP_ZEROMORE;
+        }
+        else if (expression instanceof BnfExternalExpression) {
+            myExternalSeen = true;
+            return false;
+        }
+        else {
+            return expression instanceof BnfPredicate;
+        }
+    }
+
+    private void addElement(@Nullable BitSet first, @Nonnull String element) {
+        if (first == null) {
+            return;
+        }
+        Integer id = myElementIds.get(element);
+        if (id == null) {
+            myElementIds.put(element, id = myElements.size());
+            myElements.add(element);
+        }
+        first.set(id);
+    }
+}
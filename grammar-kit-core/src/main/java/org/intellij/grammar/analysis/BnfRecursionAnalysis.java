@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.intellij.grammar.analysis;
+
+import consulo.annotation.access.RequiredReadAction;
+import consulo.application.util.CachedValue;
+import consulo.application.util.CachedValueProvider;
+import consulo.application.util.CachedValuesManager;
+import consulo.language.psi.PsiElement;
+import consulo.util.dataholder.Key;
+import jakarta.annotation.Nonnull;
+import org.intellij.grammar.generator.RuleGraphHelper;
+import org.intellij.grammar.psi.BnfExpression;
+import org.intellij.grammar.psi.BnfFile;
+import org.intellij.grammar.psi.BnfRule;
+
+import java.util.*;
+
+/**
+ * Strongly connected components of two rule graphs of a file:
+ * <ul>
+ * <li>the contents graph, a rule points to the rules its PSI may contain as children, see {@link RuleGraphHelper#getFor(BnfRule)};</li>
+ * <li>the left-corner graph, a rule points to the rules it may start with, see {@link BnfFirstTable}.</li>
+ * </ul>
+ * The left-corner graph over-approximates {@link BnfFirstNextAnalyzer} inside cycles, so left-recursive rules
+ * and their cycles are then found by one analyzer walk per rule of a left-corner cycle.
+ */
+public class BnfRecursionAnalysis {
+    private static final Key<CachedValue<BnfRecursionAnalysis>> RECURSION_ANALYSIS_KEY = Key.create("RECURSION_ANALYSIS_KEY");
+
+    private final List<BnfRule> myRules;
+    private final Map<BnfRule, Integer> myRuleIds = new HashMap<>();
+    private final Components myContents;
+    private final Map<BnfRule, List<BnfRule>> myLeftRecursionCycles = new HashMap<>();
+
+    @RequiredReadAction
+    public static BnfRecursionAnalysis getCached(final BnfFile file) {
+        CachedValue<BnfRecursionAnalysis> value = file.getUserData(RECURSION_ANALYSIS_KEY);
+        if (value == null) {
+            file.putUserData(RECURSION_ANALYSIS_KEY, value = CachedValuesManager.getManager(file.getProject()).createCachedValue(
+                () -> new CachedValueProvider.Result<>(new BnfRecursionAnalysis(file), file), false));
+        }
+        return value.getValue();
+    }
+
+    @RequiredReadAction
+    public BnfRecursionAnalysis(@Nonnull BnfFile file) {
+        myRules = file.getRules();
+        int size = myRules.size();
+        for (int i = 0; i < size; i++) {
+            myRuleIds.put(myRules.get(i), i);
+        }
+        RuleGraphHelper helper = RuleGraphHelper.getCached(file);
+        BnfFirstTable firstTable = BnfFirstTable.getCached(file);
+        BitSet[] contents = new BitSet[size];
+        BitSet[] leftCalls = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            contents[i] = new BitSet();
+            for (PsiElement element : helper.getFor(myRules.get(i)).keySet()) {
+                Integer id = element instanceof BnfRule ? myRuleIds.get(element) : null;
+                if (id != null) {
+                    contents[i].set(id);
+                }
+            }
+            leftCalls[i] = firstTable.getLeftCalls(i);
+        }
+        myContents = new Components(contents);
+        Components leftCorners = new Components(leftCalls);
+        for (int i = 0; i < size; i++) {
+            if (leftCorners.isCyclic(i)) {
+                List<BnfRule> cycle = findLeftRecursionCycle(myRules.get(i));
+                if (!cycle.isEmpty()) {
+                    myLeftRecursionCycles.put(myRules.get(i), cycle);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the shortest of the cycles the analyzer walk cuts at the rule itself, i.e. the rule is in its own FIRST set.
+     * Cuts at a rule starting with a predicate add nothing to FIRST and are not reported by the analyzer.
+     */
+    @Nonnull
+    @RequiredReadAction
+    private static List<BnfRule> findLeftRecursionCycle(@Nonnull BnfRule rule) {
+        List<BnfRule> result = new ArrayList<>();
+        new BnfFirstNextAnalyzer().setCycleListener((target, path) -> {
+            if (target != rule || !result.isEmpty() && result.size() <= path.size() + 1) {
+                return;
+            }
+            result.clear();
+            for (BnfExpression expression : path) {
+                result.add((BnfRule)expression.getParent());
+            }
+            result.add(rule);
+        }).calcFirst(rule);
+        return result;
+    }
+
+    /**
+     * Returns whether PSI of the rule may contain PSI of the same rule.
+     */
+    public boolean isRecursive(@Nonnull BnfRule rule) {
+        Integer id = myRuleIds.get(rule);
+        return id != null && myContents.isCyclic(id);
+    }
+
+    /**
+     * Returns whether the rule may start with itself.
+     * Same as a FIRST set of the rule containing the rule name, so rules starting with a predicate are not reported.
+     */
+    public boolean isLeftRecursive(@Nonnull BnfRule rule) {
+        return myLeftRecursionCycles.containsKey(rule);
+    }
+
+    /**
+     * Returns the shortest left-recursive cycle the analyzer finds, starting and ending with the rule,
+     * or an empty list if the rule is not left-recursive.
+     */
+    @Nonnull
+    public List<BnfRule> getLeftRecursionCycle(@Nonnull BnfRule rule) {
+        List<BnfRule> cycle = myLeftRecursionCycles.get(rule);
+        return cycle == null ? Collections.emptyList() : Collections.unmodifiableList(cycle);
+    }
+
+    /**
+     * Strongly connected components found by the iterative Tarjan algorithm.
+     */
+    private static class Components {
+        private final BitSet myCyclic = new BitSet();
+
+        Components(BitSet[] edges) {
+            int size = edges.length;
+            int[] index = new int[size];
+            int[] low = new int[size];
+            int[] nextEdge = new int[size];
+            int[] stack = new int[size];
+            int[] callStack = new int[size];
+            boolean[] onStack = new boolean[size];
+            Arrays.fill(index, -1);
+            int counter = 0;
+            int sp = 0;
+            for (int root = 0; root < size; root++) {
+                if (index[root] != -1) {
+                    continue;
+                }
+                int csp = 0;
+                callStack[csp++] = root;
+                index[root] = low[root] = counter++;
+                stack[sp++] = root;
+                onStack[root] = true;
+                nextEdge[root] = edges[root].nextSetBit(0);
+                while (csp > 0) {
+                    int v = callStack[csp - 1];
+                    int w = nextEdge[v];
+                    if (w >= 0) {
+                        nextEdge[v] = edges[v].nextSetBit(w + 1);
+                        if (index[w] == -1) {
+                            index[w] = low[w] = counter++;
+                            stack[sp++] = w;
+                            onStack[w] = true;
+                            nextEdge[w] = edges[w].nextSetBit(0);
+                            callStack[csp++] = w;
+                        }
+                        else if (onStack[w]) {
+                            low[v] = Math.min(low[v], index[w]);
+                        }
+                        continue;
+                    }
+                    csp--;
+                    if (csp > 0) {
+                        int parent = callStack[csp - 1];
+                        low[parent] = Math.min(low[parent], low[v]);
+                    }
+                    if (low[v] != index[v]) {
+                        continue;
+                    }
+                    int first = sp;
+                    do {
+                        first--;
+                        onStack[stack[first]] = false;
+                    }
+                    while (stack[first] != v);
+                    if (sp - first > 1 || edges[v].get(v)) {
+                        for (int i = first; i < sp; i++) {
+                            myCyclic.set(stack[i]);
+                        }
+                    }
+                    sp = first;
+                }
+            }
+        }
+
+        boolean isCyclic(int id) {
+            return myCyclic.get(id);
+        }
+    }
+}
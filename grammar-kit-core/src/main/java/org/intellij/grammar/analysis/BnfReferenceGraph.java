@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.intellij.grammar.analysis;
+
+import consulo.annotation.access.RequiredReadAction;
+import consulo.application.util.CachedValue;
+import consulo.application.util.CachedValueProvider;
+import consulo.application.util.CachedValuesManager;
+import consulo.language.psi.PsiElement;
+import consulo.language.psi.PsiReference;
+import consulo.language.psi.util.PsiTreeUtil;
+import consulo.util.collection.ContainerUtil;
+import consulo.util.collection.MultiMap;
+import consulo.util.dataholder.Key;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import org.intellij.grammar.KnownAttribute;
+import org.intellij.grammar.psi.*;
+import org.intellij.grammar.psi.impl.BnfReferenceImpl;
+
+import java.util.*;
+
+import static org.intellij.grammar.generator.ParserGeneratorUtil.findAttribute;
+import static org.intellij.grammar.psi.impl.GrammarUtil.bnfTraverser;
+import static org.intellij.grammar.psi.impl.GrammarUtil.bnfTraverserNoAttrs;
+
+/**
+ * Rule references of a file collected in a single pass: rules referenced from rule expressions,
+ * references in rule expressions that resolve to no rule, recovery rules and rules referenced from attributes.
+ */
+public class BnfReferenceGraph {
+    private static final Key<CachedValue<BnfReferenceGraph>> REFERENCE_GRAPH_KEY = Key.create("REFERENCE_GRAPH_KEY");
+
+    private final MultiMap<BnfRule, BnfRule> myReferences = MultiMap.createLinkedSet();
+    private final MultiMap<BnfRule, BnfReferenceOrToken> myUnresolved = new MultiMap<>();
+    private final Set<BnfRule> myReferencedInExpressions = new HashSet<>();
+    private final Set<BnfRule> myRecoveryRules = new LinkedHashSet<>();
+    private final Map<BnfRule, String> myAttributeTargets = new HashMap<>();
+
+    @RequiredReadAction
+    public static BnfReferenceGraph getCached(final BnfFile file) {
+        CachedValue<BnfReferenceGraph> value = file.getUserData(REFERENCE_GRAPH_KEY);
+        if (value == null) {
+            file.putUserData(REFERENCE_GRAPH_KEY, value = CachedValuesManager.getManager(file.getProject()).createCachedValue(
+                () -> new CachedValueProvider.Result<>(new BnfReferenceGraph(file), file), false));
+        }
+        return value.getValue();
+    }
+
+    @RequiredReadAction
+    public BnfReferenceGraph(@Nonnull BnfFile file) {
+        String version = file.getVersion();
+        BnfRule currentRule = null;
+        for (PsiElement o : bnfTraverserNoAttrs(file)) {
+            if (o instanceof BnfRule rule) {
+                currentRule = rule;
+                BnfAttr recoverAttr = findAttribute(version, rule, KnownAttribute.RECOVER_WHILE);
+                BnfExpression recoverExpression = recoverAttr == null ? null : recoverAttr.getExpression();
+                if (recoverExpression instanceof BnfReferenceOrToken reference) {
+                    ContainerUtil.addIfNotNull(myRecoveryRules, reference.resolveRule());
+                }
+                continue;
+            }
+            ContainerUtil.addIfNotNull(myReferencedInExpressions, resolveRule(o));
+            if (currentRule != null && o instanceof BnfReferenceOrToken reference) {
+                BnfRule target = reference.resolveRule();
+                if (target != null) {
+                    myReferences.putValue(currentRule, target);
+                }
+                else if (PsiTreeUtil.getParentOfType(o, BnfExternalExpression.class, true, BnfRule.class) == null) {
+                    myUnresolved.putValue(currentRule, reference);
+                }
+            }
+        }
+        for (BnfAttr attr : bnfTraverser(file).filter(BnfAttr.class)) {
+            BnfRule target = resolveRule(attr.getExpression());
+            if (target != null) {
+                myAttributeTargets.put(target, attr.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns rules referenced from the rule expression.
+     */
+    @Nonnull
+    public Collection<BnfRule> getReferencedRules(@Nonnull BnfRule rule) {
+        return myReferences.get(rule);
+    }
+
+    /**
+     * Returns references in the rule expression that resolve to no rule, in file order.
+     * References inside external expressions are not included: they may resolve to parser util methods.
+     */
+    @Nonnull
+    public Collection<BnfReferenceOrToken> getUnresolvedReferences(@Nonnull BnfRule rule) {
+        return myUnresolved.get(rule);
+    }
+
+    /**
+     * Returns whether the rule is referenced from any rule expression.
+     */
+    public boolean isReferenced(@Nonnull BnfRule rule) {
+        return myReferencedInExpressions.contains(rule);
+    }
+
+    /**
+     * Returns rules referenced as {@code recoverWhile} of some rule.
+     */
+    @Nonnull
+    public Set<BnfRule> getRecoveryRules() {
+        return Collections.unmodifiableSet(myRecoveryRules);
+    }
+
+    /**
+     * Returns the name of an attribute referencing the rule, or {@code null} if no attribute references it.
+     */
+    @Nullable
+    public String getReferencingAttribute(@Nonnull BnfRule rule) {
+        return myAttributeTargets.get(rule);
+    }
+
+    /**
+     * Returns the roots together with all rules referenced from the roots and from the {@code sources} transitively.
+     * Sources themselves are not included unless they are referenced.
+     */
+    @Nonnull
+    public Set<BnfRule> getReachableRules(@Nonnull Collection<BnfRule> roots, @Nonnull Collection<BnfRule> sources) {
+        Set<BnfRule> result = new HashSet<>(roots);
+        Deque<BnfRule> queue = new ArrayDeque<>(result);
+        queue.addAll(sources);
+        for (BnfRule rule = queue.poll(); rule != null; rule = queue.poll()) {
+            for (BnfRule target : myReferences.get(rule)) {
+                if (result.add(target)) {
+                    queue.add(target);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    @RequiredReadAction
+    public static BnfRule resolveRule(@Nullable PsiElement o) {
+        if (!(o instanceof BnfReferenceOrToken || o instanceof BnfStringLiteralExpression)) {
+            return null;
+        }
+        PsiReference reference = ContainerUtil.findInstance(o.getReferences(), BnfReferenceImpl.class);
+        PsiElement target = reference != null ? reference.resolve() : null;
+        return target instanceof BnfRule rule ? rule : null;
+    }
+}
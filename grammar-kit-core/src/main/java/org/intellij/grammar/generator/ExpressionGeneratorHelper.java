@@ -56,7 +56,7 @@ public class ExpressionGeneratorHelper {
         String shortPB = g.shorten(PlatformClass.PSI_BUILDER);
         String shortMarker = !g.G.generateFQN ? "Marker" : g.getClassName(PlatformClass.PSI_BUILDER) + ".Marker";
         g.out("public static boolean %s(%s %s, int %s, int %s) {", methodName, shortPB, g.N.builder, g.N.level, g.N.priority);
-        g.out("if (!recursion_guard_(%s, %s, \"%s\")) return false;", g.N.builder, g.N.level, methodName);
+        g.out("if (!%s(%s, %s, \"%s\")) return false;", g.getRecursionGuard(), g.N.builder, g.N.level, methodName);
 
         if (frameName != null) {
             g.out("addVariant(%s, %s);", g.N.builder, frameName);
@@ -85,7 +85,7 @@ public class ExpressionGeneratorHelper {
 
         // kernel
         g.out("public static boolean %s(%s %s, int %s, int %s) {", kernelMethodName, shortPB, g.N.builder, g.N.level, g.N.priority);
-        g.out("if (!recursion_guard_(%s, %s, \"%s\")) return false;", g.N.builder, g.N.level, kernelMethodName);
+        g.out("if (!%s(%s, %s, \"%s\")) return false;", g.getRecursionGuard(), g.N.builder, g.N.level, kernelMethodName);
         g.out("boolean %s = true;", g.N.result);
         g.out("while (true) {");
         g.out("%s %s = enter_section_(%s, %s, _LEFT_, null);", shortMarker, g.N.marker, g.N.builder, g.N.level);
@@ -186,7 +186,7 @@ public class ExpressionGeneratorHelper {
                     g.newLine();
                     String operatorFuncName = operator.rule.getName();
                     g.out("public static boolean %s(%s %s, int %s) {", operatorFuncName, shortPB, g.N.builder, g.N.level);
-                    g.out("if (!recursion_guard_(%s, %s, \"%s\")) return false;", g.N.builder, g.N.level, operatorFuncName);
+                    g.out("if (!%s(%s, %s, \"%s\")) return false;", g.getRecursionGuard(), g.N.builder, g.N.level, operatorFuncName);
                     g.generateFirstCheck(operator.rule, frameName, false);
                     g.out("boolean %s, %s;", g.N.result, g.N.pinned);
                     g.out("%s %s = enter_section_(%s, %s, _NONE_, null);", shortMarker, g.N.marker, g.N.builder, g.N.level);
@@ -100,11 +100,10 @@ public class ExpressionHelper {
             if (myRootRulesMap.containsKey(rule)) {
                 continue;
             }
-            Map<PsiElement, RuleGraphHelper.Cardinality> contentRules = myRuleGraph.getFor(rule);
-            if (!contentRules.isEmpty()) {
+            if (!myRuleGraph.isEmptyFor(rule)) {
                 continue;
             }
-            if (!analyzer.asStrings(analyzer.calcFirst(rule)).contains(rule.getName())) {
+            if (!analyzer.calcFirstAsStrings(rule).contains(rule.getName())) {
                 continue;
             }
 
@@ -149,7 +148,7 @@ public class ExpressionHelper {
             Integer groupPriority = info.privateGroups.get(it.parent());
             int priority = groupPriority == null ? info.nextPriority++ : groupPriority;
             if (rulesCluster.contains(subRule)) {
-                if (!Rule.isPrivate(subRule) || !myRuleGraph.getFor(subRule).isEmpty()) {
+                if (!Rule.isPrivate(subRule) || !myRuleGraph.isEmptyFor(subRule)) {
                     info.priorityMap.put(subRule, priority);
                 }
             }
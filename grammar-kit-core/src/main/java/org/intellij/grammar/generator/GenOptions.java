@@ -21,12 +21,17 @@ public class GenOptions {
     public final int generateFirstCheck;
     public final boolean generateTokenTypes;
     public final boolean generateTokenSets;
+    public final boolean generateTokenArrays;
+    public final boolean generateChoiceDispatch;
+    public final boolean generateExtendsMatrix;
     public final boolean generateElementTypes;
+    public final boolean generateGroupedHolder;
     public final String generateExactTypes;
     public final boolean generateExtendedPin;
     public final boolean generatePsi;
     public final boolean generatePsiFactory;
     public final boolean generatePsiClassesMap;
+    public final boolean generatePsiFactoryIndex;
     public final boolean generateVisitor;
     public final String visitorValue;
     public final boolean generateFQN;
@@ -35,6 +40,9 @@ public class GenOptions {
     public final boolean generateTokenAccessors;
     public final boolean generateTokenAccessorsSet;
     public final int javaVersion;
+    public final boolean generateParallel;
+    public final int methodSizeLimit; // bytes, 8000 is the HotSpot HugeMethodLimit above which methods are not JIT-compiled
+    public final int memoizeLimit;
 
     public GenOptions(BnfFile bnfFile) {
         String version = bnfFile.getVersion();
@@ -43,9 +51,14 @@ public class GenOptions {
         generatePsi = getGenerateOption(version, bnfFile, KnownAttribute.GENERATE_PSI, genOptions, "psi");
         generatePsiFactory = !"no".equals(genOptions.get("psi-factory"));
         generatePsiClassesMap = "yes".equals(genOptions.get("psi-classes-map"));
+        generatePsiFactoryIndex = "yes".equals(genOptions.get("psi-factory-index"));
         generateTokenTypes = getGenerateOption(version, bnfFile, KnownAttribute.GENERATE_TOKENS, genOptions, "tokens");
         generateTokenSets = generateTokenTypes && "yes".equals(genOptions.get("token-sets"));
+        generateTokenArrays = "yes".equals(genOptions.get("token-arrays"));
+        generateChoiceDispatch = "yes".equals(genOptions.get("choice-dispatch"));
+        generateExtendsMatrix = "yes".equals(genOptions.get("extends-matrix"));
         generateElementTypes = !"no".equals(genOptions.get("elements"));
+        generateGroupedHolder = "yes".equals(genOptions.get("grouped-holder"));
         generateExactTypes = StringUtil.notNullize(genOptions.get("exact-types"));
         generateFirstCheck =
             getGenerateOption(version, bnfFile, KnownAttribute.GENERATE_FIRST_CHECK, genOptions, "first-check", "firstCheck");
@@ -61,5 +74,8 @@ public class GenOptions {
         generateTokenCase = ParserGeneratorUtil.enumFromString(genOptions.get("token-case"), Case.UPPER);
         generateElementCase = ParserGeneratorUtil.enumFromString(genOptions.get("element-case"), Case.UPPER);
         javaVersion = StringUtil.parseInt(genOptions.get("java"), 11);
+        generateParallel = "yes".equals(genOptions.get("parallel"));
+        methodSizeLimit = StringUtil.parseInt(genOptions.get("method-size-limit"), 8000);
+        memoizeLimit = StringUtil.parseInt(genOptions.get("memoize-limit"), 100000);
     }
 }
@@ -23,6 +23,8 @@ class Names {
     public final String priority;
     public final String metaParamPrefix;
     public final String psiLocal = "p";
+    public final String memoPos = "memo_";
+    public final String memoTrips = "memo_trips_";
 
     private Names(
         String builder,
@@ -26,6 +26,22 @@ public class NodeCalls {
         String render(@Nonnull Names names);
     }
 
+    /**
+     * Upper bound of the bytecode a rendered call takes, including argument loading, as measured on javac 17 output.
+     * A static call on the builder and a token or the level takes 7 bytes (aload, getstatic or iload/iconst/iadd, invokestatic).
+     */
+    static int estimateBytecodeSize(@Nonnull NodeCall call) {
+        if (call instanceof ConsumeTokensCall tokensCall) {
+            // varargs: pin, array length and anewarray, then dup/index/getstatic/aastore per token, bipush index past 5
+            return 9 + 7 * tokensCall.tokens.size();
+        }
+        if (call instanceof MethodCallWithArguments callWithArguments) {
+            // an argument is a getstatic of a parser field or an invokedynamic of a lambda
+            return 7 + 5 * callWithArguments.arguments.size();
+        }
+        return 7;
+    }
+
     interface NodeArgument {
         default boolean referencesMetaParameter() {
             return false;
@@ -5,12 +5,15 @@
 package org.intellij.grammar.generator;
 
 import consulo.annotation.access.RequiredReadAction;
+import consulo.application.concurrent.JobLauncher;
+import consulo.application.progress.ProgressManager;
 import consulo.devkit.grammarKit.generator.GenerateTarget;
 import consulo.devkit.grammarKit.generator.PlatformClass;
 import consulo.language.ast.IElementType;
 import consulo.language.impl.parser.GeneratedParserUtilBase.Parser;
 import consulo.language.psi.NavigatablePsiElement;
 import consulo.language.psi.PsiElement;
+import consulo.language.psi.util.PsiTreeUtil;
 import consulo.logging.Logger;
 import consulo.util.collection.*;
 import consulo.util.lang.*;
@@ -26,14 +29,18 @@ import org.intellij.grammar.psi.impl.GrammarUtil;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static consulo.util.collection.ContainerUtil.map;
 import static java.lang.String.format;
 import static java.util.stream.Collectors.*;
 import static org.intellij.grammar.analysis.BnfFirstNextAnalyzer.BNF_MATCHES_ANY;
 import static org.intellij.grammar.analysis.BnfFirstNextAnalyzer.BNF_MATCHES_EOF;
+import static org.intellij.grammar.analysis.BnfFirstNextAnalyzer.BNF_MATCHES_NOTHING;
 import static org.intellij.grammar.generator.BnfConstants.*;
 import static org.intellij.grammar.generator.NameShortener.*;
 import static org.intellij.grammar.generator.ParserGeneratorUtil.*;
@@ -49,6 +56,14 @@ import static org.intellij.grammar.psi.BnfTypes.*;
 public class ParserGenerator {
     public static final Logger LOG = Logger.getInstance("ParserGenerator");
 
+    // bytecode sizes used to split huge rule methods, see GenOptions#methodSizeLimit, measured on javac 17 output:
+    // recursion guard, first check, enter/exit section and return take 64 bytes,
+    // "if (!r) r = <call>;" takes 5 bytes and "r = r && <call>;" 13 bytes besides the call,
+    // one more for locals that need a wide index
+    private static final int METHOD_SIZE_OVERHEAD = 64;
+    private static final int CHOICE_STATEMENT_SIZE = 6;
+    private static final int SEQUENCE_STATEMENT_SIZE = 14;
+
     private static final Function<String, String> genericUnwrapper = type -> {
         if (type.startsWith("<") && type.endsWith(">")) {
             return type.substring(1, type.length() - 1);
@@ -119,6 +134,9 @@ public class ParserGenerator {
     private final Map<String, String> myMetaMethodFields = new HashMap<>();
 
     private final Map<String, Collection<String>> myTokenSets = new TreeMap<>();
+    private final Map<String, String> myTokenArrays = new HashMap<>();      // field name -> comma-separated element types
+    private final Map<String, Integer> myMemoRules = new LinkedHashMap<>(); // rule name -> memo table index
+    private final Map<String, Pair<String, String>> myReparseableRules = new HashMap<>(); // rule name -> delimiter token names
     private final Map<String, String> mySimpleTokens;
     private final Set<String> myTokensUsedInGrammar = new LinkedHashSet<>();
     private final boolean myNoStubs;
@@ -139,10 +157,21 @@ public class ParserGenerator {
 
     private final String myVisitorClassName;
     private final String myTypeHolderClass;
+    private final String myReparseableTypeClass;
 
-    private int myOffset;
-    private PrintWriter myOut;
-    private NameShortener myShortener;
+    /**
+     * Emission state of the file being generated: target file, in-memory buffer, writer, indentation and import shortener.
+     * Thread-local so that PSI classes can be rendered concurrently, see {@link GenOptions#generateParallel}.
+     */
+    private static class Output {
+        File file;
+        StringWriter buffer;
+        PrintWriter out;
+        int offset;
+        NameShortener shortener;
+    }
+
+    private final ThreadLocal<Output> myOutput = ThreadLocal.withInitial(Output::new);
 
     private final RuleGraphHelper myGraphHelper;
     private final ExpressionHelper myExpressionHelper;
@@ -181,6 +210,7 @@ public class ParserGenerator {
             ? tmpVisitorClass
             : getRootAttribute(myVersion, myFile, KnownAttribute.PSI_PACKAGE) + "." + tmpVisitorClass;
         myTypeHolderClass = getRootAttribute(myVersion, myFile, KnownAttribute.ELEMENT_TYPE_HOLDER_CLASS);
+        myReparseableTypeClass = myTypeHolderClass + "ReparseableType";
 
         mySimpleTokens = new LinkedHashMap<>(RuleGraphHelper.getTokenTextToNameMap(myFile));
         myGraphHelper = RuleGraphHelper.getCached(myFile);
@@ -216,6 +246,81 @@ public class ParserGenerator {
         calcFakeRulesWithType();
         calcRulesStubNames();
         calcAbstractRules();
+        calcMemoRules();
+        calcReparseableRules();
+    }
+
+    private void calcReparseableRules() {
+        String language = getRootAttribute(myVersion, myFile, KnownAttribute.ELEMENT_TYPE_LANGUAGE);
+        for (BnfRule rule : myFile.getRules()) {
+            if (!Boolean.TRUE.equals(getAttribute(myVersion, rule, KnownAttribute.REPARSEABLE))) {
+                continue;
+            }
+            if (Rule.isPrivate(rule) || Rule.isExternal(rule) || Rule.isFake(rule) || Rule.isMeta(rule)) {
+                continue;
+            }
+            if (StringUtil.isEmpty(getElementType(rule)) || getAttribute(myVersion, rule, KnownAttribute.ELEMENT_TYPE) != null) {
+                continue;
+            }
+            if (getAttribute(myVersion, rule, KnownAttribute.ELEMENT_TYPE_FACTORY) != null ||
+                !PlatformClass.IELEMENT_TYPE.select(myVersion).equals(getAttribute(myVersion, rule, KnownAttribute.ELEMENT_TYPE_CLASS))) {
+                addWarning(myFile.getProject(), "%s: reparseable is ignored for rules with elementTypeClass or elementTypeFactory", rule.getName());
+                continue;
+            }
+            if (StringUtil.isEmpty(language)) {
+                addWarning(myFile.getProject(), "%s: reparseable rules require the elementTypeLanguage attribute", rule.getName());
+                return;
+            }
+            BnfExpression expression = getNonTrivialNode(rule.getExpression());
+            List<BnfExpression> children = expression instanceof BnfSequence ? getChildExpressions(expression) : Collections.emptyList();
+            String open = children.size() < 2 ? null : getDelimiterToken(children.get(0));
+            String close = children.size() < 2 ? null : getDelimiterToken(children.get(children.size() - 1));
+            if (open == null || close == null || open.equals(close)) {
+                addWarning(myFile.getProject(), "%s: not delimited by a pair of tokens, incremental reparse is disabled", rule.getName());
+                open = close = null;
+            }
+            else if (!G.generateTokenTypes) {
+                addWarning(myFile.getProject(), "%s: delimiter token types are not generated, incremental reparse is disabled", rule.getName());
+                open = close = null;
+            }
+            myReparseableRules.put(rule.getName(), Pair.create(open, close));
+        }
+    }
+
+    @Nullable
+    @RequiredReadAction
+    private String getDelimiterToken(@Nonnull BnfExpression expression) {
+        if (expression instanceof BnfStringLiteralExpression) {
+            String text = getLiteralValue((BnfStringLiteralExpression) expression);
+            return text == null ? null : mySimpleTokens.get(text);
+        }
+        if (expression instanceof BnfReferenceOrToken && myFile.getRule(expression.getText()) == null) {
+            for (Map.Entry<String, String> entry : mySimpleTokens.entrySet()) {
+                if (expression.getText().equals(entry.getValue()) && !isRegexpToken(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    private void calcMemoRules() {
+        for (BnfRule rule : myFile.getRules()) {
+            if (!Boolean.TRUE.equals(getAttribute(myVersion, rule, KnownAttribute.MEMOIZE))) {
+                continue;
+            }
+            if (Rule.isExternal(rule) || Rule.isFake(rule) || Rule.isMeta(rule)) {
+                continue;
+            }
+            if (myExpressionHelper.getExpressionInfo(rule) != null) {
+                continue;
+            }
+            if (getRuleDisplayName(myVersion, rule, !Rule.isPrivate(rule)) == null) {
+                addWarning(myFile.getProject(), "%s: memoize requires a rule name to report, set the name attribute", rule.getName());
+                continue;
+            }
+            myMemoRules.put(rule.getName(), myMemoRules.size());
+        }
     }
 
     private void calcAbstractRules() {
@@ -244,7 +349,7 @@ public class ParserGenerator {
                 continue;
             }
 
-            if (myGraphHelper.canCollapse(rule) && myGraphHelper.getFor(rule).isEmpty()) {
+            if (myGraphHelper.canCollapse(rule) && myGraphHelper.isEmptyFor(rule)) {
                 ruleInfo(rule).isAbstract = true;
             }
         }
@@ -326,14 +431,19 @@ public class ParserGenerator {
         }
     }
 
-    private void openOutput(String className) throws IOException {
-        String classNameAdjusted = myPackagePrefix.isEmpty() ? className : StringUtil.trimStart(className, myPackagePrefix + ".");
-        File file = new File(myOutputPath, classNameAdjusted.replace('.', File.separatorChar) + ".java");
-        myOut = openOutputInner(file);
+    private void openOutput(String className) {
+        StringWriter buffer = new StringWriter();
+        Output output = myOutput.get();
+        output.file = getOutputFile(className);
+        output.buffer = buffer;
+        output.out = new PrintWriter(buffer);
     }
 
     private void openDummyOutput() {
-        myOut = new PrintWriter(new StringWriter());
+        Output output = myOutput.get();
+        output.file = null;
+        output.buffer = null;
+        output.out = new PrintWriter(new StringWriter());
     }
 
     protected PrintWriter openOutputInner(File file) throws IOException {
@@ -342,8 +452,47 @@ public class ParserGenerator {
         return new PrintWriter(new FileOutputStream(file), false, myFile.getVirtualFile().getCharset());
     }
 
-    private void closeOutput() {
-        myOut.close();
+    /**
+     * Called instead of {@link #openOutputInner(File)} when the generated text is byte-for-byte equal to the existing file.
+     */
+    protected void outputSkipped(File file) {
+    }
+
+    private File getOutputFile(String className) {
+        String classNameAdjusted = myPackagePrefix.isEmpty() ? className : StringUtil.trimStart(className, myPackagePrefix + ".");
+        return new File(myOutputPath, classNameAdjusted.replace('.', File.separatorChar) + ".java");
+    }
+
+    private void closeOutput() throws IOException {
+        Output output = myOutput.get();
+        output.out.close();
+        File file = output.file;
+        StringWriter buffer = output.buffer;
+        output.file = null;
+        output.buffer = null;
+        if (file == null || buffer == null) {
+            return;
+        }
+        String text = buffer.toString();
+        if (isUpToDate(file, text.getBytes(myFile.getVirtualFile().getCharset()))) {
+            outputSkipped(file);
+            return;
+        }
+        try (PrintWriter writer = openOutputInner(file)) {
+            writer.print(text);
+        }
+    }
+
+    private static boolean isUpToDate(@Nonnull File file, @Nonnull byte[] content) {
+        if (!file.isFile() || file.length() != content.length) {
+            return false;
+        }
+        try {
+            return Arrays.equals(Files.readAllBytes(file.toPath()), content);
+        }
+        catch (IOException e) {
+            return false;
+        }
     }
 
     public void out(String s, Object... args) {
@@ -351,9 +500,10 @@ public class ParserGenerator {
     }
 
     public void out(String s) {
+        Output output = myOutput.get();
         int length = s.length();
         if (length == 0) {
-            myOut.println();
+            output.out.println();
             return;
         }
         boolean newStatement = true;
@@ -365,22 +515,22 @@ public class ParserGenerator {
             }
             String substring = s.substring(start, end);
             if (!isComment && (substring.startsWith("}") || substring.startsWith(")"))) {
-                myOffset--;
+                output.offset--;
                 newStatement = true;
             }
-            if (myOffset > 0) {
-                myOut.print(StringUtil.repeat("  ", newStatement ? myOffset : myOffset + 1));
+            if (output.offset > 0) {
+                output.out.print(StringUtil.repeat("  ", newStatement ? output.offset : output.offset + 1));
             }
-            myOut.println(substring);
+            output.out.println(substring);
             if (isComment) {
                 newStatement = true;
             }
             else if (substring.endsWith("{")) {
-                myOffset++;
+                output.offset++;
                 newStatement = true;
             }
             else if (substring.endsWith("(")) {
-                myOffset++;
+                output.offset++;
                 newStatement = false;
             }
             else {
@@ -395,7 +545,7 @@ public class ParserGenerator {
 
     @Nonnull
     public String shorten(@Nonnull PlatformClass platformClass) {
-        return myShortener.shorten(platformClass.select(myVersion));
+        return myOutput.get().shortener.shorten(platformClass.select(myVersion));
     }
 
     @Nonnull
@@ -405,7 +555,7 @@ public class ParserGenerator {
 
     @Nonnull
     public String shorten(@Nonnull String s) {
-        return myShortener.shorten(s);
+        return myOutput.get().shortener.shorten(s);
     }
 
     @Deprecated
@@ -445,9 +595,48 @@ public class ParserGenerator {
         }
 
         if (targets.contains(GenerateTarget.API) && myGrammarRoot != null && (G.generateTokenTypes || G.generateElementTypes)) {
+            List<String> groupHolders = new ArrayList<>();
+            if (G.generateGroupedHolder) {
+                // each group is initialized on first access to one of its own fields
+                if (G.generateElementTypes) {
+                    groupHolders.add(myTypeHolderClass + "Elements");
+                    openOutput(myTypeHolderClass + "Elements");
+                    try {
+                        generateElementTypesHolder(myTypeHolderClass + "Elements", sortedCompositeTypes, true, false);
+                    }
+                    finally {
+                        closeOutput();
+                    }
+                }
+                if (G.generateTokenTypes) {
+                    groupHolders.add(myTypeHolderClass + "Tokens");
+                    openOutput(myTypeHolderClass + "Tokens");
+                    try {
+                        generateElementTypesHolder(myTypeHolderClass + "Tokens", sortedCompositeTypes, false, true);
+                    }
+                    finally {
+                        closeOutput();
+                    }
+                }
+            }
+            if (G.generateElementTypes && !myReparseableRules.isEmpty()) {
+                openOutput(myReparseableTypeClass);
+                try {
+                    generateReparseableElementType();
+                }
+                finally {
+                    closeOutput();
+                }
+            }
             openOutput(myTypeHolderClass);
             try {
-                generateElementTypesHolder(myTypeHolderClass, sortedCompositeTypes);
+                generateElementTypesHolder(
+                    myTypeHolderClass,
+                    sortedCompositeTypes,
+                    !G.generateGroupedHolder && G.generateElementTypes,
+                    !G.generateGroupedHolder && G.generateTokenTypes,
+                    ArrayUtil.toStringArray(groupHolders)
+                );
             }
             finally {
                 closeOutput();
@@ -477,29 +666,11 @@ public class ParserGenerator {
             myRulesMethodsHelper.buildMaps(sortedPsiRules.values());
 
             if (targets.contains(GenerateTarget.API)) {
-                for (BnfRule rule : sortedPsiRules.values()) {
-                    RuleInfo info = ruleInfo(rule);
-                    openOutput(info.intfClass);
-                    try {
-                        generatePsiIntf(rule, info);
-                    }
-                    finally {
-                        closeOutput();
-                    }
-                }
+                generatePsiClasses(sortedPsiRules.values(), o -> o.intfClass, this::generatePsiIntf);
             }
 
             if (targets.contains(GenerateTarget.Impl)) {
-                for (BnfRule rule : sortedPsiRules.values()) {
-                    RuleInfo info = ruleInfo(rule);
-                    openOutput(info.implClass);
-                    try {
-                        generatePsiImpl(rule, info);
-                    }
-                    finally {
-                        closeOutput();
-                    }
-                }
+                generatePsiClasses(sortedPsiRules.values(), o -> o.implClass, this::generatePsiImpl);
             }
 
             if (targets.contains(GenerateTarget.API)) {
@@ -516,6 +687,68 @@ public class ParserGenerator {
         }
     }
 
+    @RequiredReadAction
+    private void generatePsiClasses(
+        @Nonnull Collection<BnfRule> sortedRules,
+        @Nonnull Function<RuleInfo, String> classNameFunction,
+        @Nonnull BiConsumer<BnfRule, RuleInfo> generator
+    ) throws IOException {
+        if (!G.generateParallel) {
+            for (BnfRule rule : sortedRules) {
+                RuleInfo info = ruleInfo(rule);
+                openOutput(classNameFunction.apply(info));
+                try {
+                    generator.accept(rule, info);
+                }
+                finally {
+                    closeOutput();
+                }
+            }
+            return;
+        }
+        // render every class into its own buffer, then write them out in the sorted order
+        // so the result is identical to the serial run.
+        // JobLauncher runs the workers under the read action held by this thread instead of taking new ones,
+        // which would wait for a pending write action while this thread waits for them, and checks cancellation.
+        List<BnfRule> rules = new ArrayList<>(sortedRules);
+        String[] texts = new String[rules.size()];
+        List<Integer> indices = IntStream.range(0, texts.length).boxed().collect(Collectors.toList());
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+            indices,
+            ProgressManager.getInstance().getProgressIndicator(),
+            i -> {
+                ProgressManager.checkCanceled();
+                texts[i] = renderPsiClass(rules.get(i), generator);
+                return true;
+            }
+        );
+        for (int i = 0; i < texts.length; i++) {
+            openOutput(classNameFunction.apply(ruleInfo(rules.get(i))));
+            try {
+                myOutput.get().out.print(texts[i]);
+            }
+            finally {
+                closeOutput();
+            }
+        }
+    }
+
+    @Nonnull
+    @RequiredReadAction
+    private String renderPsiClass(@Nonnull BnfRule rule, @Nonnull BiConsumer<BnfRule, RuleInfo> generator) {
+        StringWriter writer = new StringWriter();
+        PrintWriter out = new PrintWriter(writer);
+        myOutput.get().out = out;
+        try {
+            generator.accept(rule, ruleInfo(rule));
+        }
+        finally {
+            out.close();
+            myOutput.remove();
+        }
+        return writer.toString();
+    }
+
     private void generateVisitor(String psiClass, Map<String, BnfRule> sortedRules) {
         String superIntf = ObjectUtil.notNull(
             ContainerUtil.getFirstItem(getRootAttribute(myVersion, myFile, KnownAttribute.IMPLEMENTS)),
@@ -656,6 +889,9 @@ public class ParserGenerator {
         if (G.generateTokenSets && hasAtLeastOneTokenChoice(myFile, ownRuleNames)) {
             imports.add(staticStarImport(myTypeHolderClass + "." + TOKEN_SET_HOLDER_NAME));
         }
+        if (G.generateTokenArrays && !G.generateFQN) {
+            imports.add(PlatformClass.IELEMENT_TYPE.select(myVersion));
+        }
         if (StringUtil.isNotEmpty(myParserUtilClass)) {
             imports.add(staticStarImport(myParserUtilClass));
         }
@@ -669,6 +905,10 @@ public class ParserGenerator {
                 PlatformClass.TOKEN_SET.select(myVersion),
                 PlatformClass.PSI_PARSER.select(myVersion)
             ));
+            if (!myMemoRules.isEmpty()) {
+                imports.add(PlatformClass.KEY.select(myVersion));
+                imports.add("java.util.BitSet");
+            }
         }
         imports.addAll(parserImports);
 
@@ -703,11 +943,16 @@ public class ParserGenerator {
             }
         }
         boolean addNewLine = !myParserLambdas.isEmpty() && !myMetaMethodFields.isEmpty();
+        boolean addTokenArraysNewLine = !myTokenArrays.isEmpty() && (!myParserLambdas.isEmpty() || !myMetaMethodFields.isEmpty());
         generateParserLambdas(parserClass);
         if (addNewLine) {
             newLine();
         }
         generateMetaMethodFields();
+        if (addTokenArraysNewLine) {
+            newLine();
+        }
+        generateTokenArrays();
         out("}");
     }
 
@@ -737,6 +982,34 @@ public class ParserGenerator {
         take(myMetaMethodFields).forEach((field, call) -> out("private static final Parser " + field + " = " + call + ";"));
     }
 
+    private void generateTokenArrays() {
+        String shortET = shorten(PlatformClass.IELEMENT_TYPE);
+        take(myTokenArrays).forEach((field, tokens) -> out("private static final %s[] %s = {%s};", shortET, field, tokens));
+    }
+
+    /**
+     * Returns a reference to a {@code static final} array holding the token types,
+     * so that varargs helpers like {@code consumeTokens} do not allocate a new array on every call.
+     * Arrays with the same content are shared within a parser class.
+     */
+    @Nonnull
+    private String getTokenArrayRef(@Nonnull String nextName, @Nonnull List<String> tokenTypes) {
+        StringBuilder sb = new StringBuilder();
+        appendTokenTypes(sb, tokenTypes);
+        String tokens = sb.toString();
+        for (Map.Entry<String, String> entry : myTokenArrays.entrySet()) {
+            if (entry.getValue().equals(tokens)) {
+                return entry.getKey();
+            }
+        }
+        String fieldName = getTokenArrayConstantName(nextName);
+        for (int i = 1; myTokenArrays.containsKey(fieldName); i++) {
+            fieldName = getTokenArrayConstantName(nextName + "_" + i);
+        }
+        myTokenArrays.put(fieldName, tokens);
+        return fieldName;
+    }
+
     @RequiredReadAction
     private void generateRootParserContent() {
         BnfRule rootRule = myFile.getRule(myGrammarRoot);
@@ -756,7 +1029,8 @@ public class ParserGenerator {
             if (info != null && info.rootRule != rule) {
                 continue;
             }
-            if (!Boolean.TRUE.equals(getAttribute(myVersion, rule, KnownAttribute.EXTRA_ROOT))) {
+            if (!Boolean.TRUE.equals(getAttribute(myVersion, rule, KnownAttribute.EXTRA_ROOT)) &&
+                !myReparseableRules.containsKey(ruleName)) {
                 continue;
             }
             extraRoots.add(rule);
@@ -777,14 +1051,29 @@ public class ParserGenerator {
         newLine();
         out("public void parseLight(%s %s, %s %s) {", shortET, N.root, shortPB, N.builder);
         out("boolean %s;", N.result);
-        out("%s = adapt_builder_(%s, %s, this, %s);", N.builder, N.root, N.builder, generateExtendsSets ? "EXTENDS_SETS_" : null);
+        boolean generateExtendsMatrix = generateExtendsSets && G.generateExtendsMatrix;
+        out(
+            "%s = adapt_builder_(%s, %s, this, %s);",
+            N.builder, N.root, N.builder, generateExtendsSets && !generateExtendsMatrix ? "EXTENDS_SETS_" : null
+        );
+        if (generateExtendsMatrix) {
+            String shortES = !G.generateFQN ? "ErrorState" : PlatformClass.GENERATED_PARSER_UTIL_BASE.select(myVersion) + ".ErrorState";
+            out("%s.get(%s).altExtendsChecker = %s::extends_matrix_;", shortES, N.builder, StringUtil.getShortName(myGrammarRootParser));
+        }
         out("%s %s = enter_section_(%s, 0, _COLLAPSE_, null);", shortMarker, N.marker, N.builder);
         out("%s = parse_root_(%s, %s);", N.result, N.root, N.builder);
         out("exit_section_(%s, 0, %s, %s, %s, true, TRUE_CONDITION);", N.builder, N.marker, N.root, N.result);
         out("}");
         newLine();
         out("protected boolean parse_root_(%s %s, %s %s) {", shortET, N.root, shortPB, N.builder);
-        out("return parse_root_(%s, %s, 0);", N.root, N.builder);
+        if (myMemoRules.isEmpty()) {
+            out("return parse_root_(%s, %s, 0);", N.root, N.builder);
+        }
+        else {
+            out("boolean %s = parse_root_(%s, %s, 0);", N.result, N.root, N.builder);
+            out("%s.putUserData(MEMO_, null);", N.builder);
+            out("return %s;", N.result);
+        }
         out("}");
         newLine();
         out("static boolean parse_root_(%s %s, %s %s, int %s) {", shortET, N.root, shortPB, N.builder, N.level);
@@ -829,6 +1118,146 @@ public class ParserGenerator {
             out("};");
             newLine();
         }
+        if (generateExtendsMatrix) {
+            generateExtendsMatrix(shortET, shortTS);
+        }
+        if (!myMemoRules.isEmpty()) {
+            generateMemoTable(shortPB);
+        }
+    }
+
+    /**
+     * Dense alternative to the linear {@code EXTENDS_SETS_} scan:
+     * every element type from the extends sets gets an ordinal, and row {@code i} of the matrix
+     * is the bit mask of types sharing an extends set with type {@code i}.
+     * The matrix is built from {@code EXTENDS_SETS_} at class init, so the class constant pool
+     * and {@code <clinit>} grow with the number of types rather than with the matrix size.
+     */
+    private void generateExtendsMatrix(@Nonnull String shortET, @Nonnull String shortTS) {
+        out("private static final %s[] EXTENDS_TYPES_ = extends_types_();", shortET);
+        out("private static final short[] EXTENDS_INDEX_ = extends_index_(EXTENDS_TYPES_);");
+        out("private static final long[][] EXTENDS_MATRIX_ = extends_masks_();");
+        newLine();
+        out("private static %s[] extends_types_() {", shortET);
+        out(
+            "%s<%s> types = new %s<>();",
+            shorten(Set.class.getName()), shortET, shorten(LinkedHashSet.class.getName())
+        );
+        out("for (%s set : EXTENDS_SETS_) types.addAll(%s.asList(set.getTypes()));", shortTS, shorten(Arrays.class.getName()));
+        out("return types.toArray(new %s[0]);", shortET);
+        out("}");
+        newLine();
+        out("private static long[][] extends_masks_() {");
+        out("long[][] masks = new long[EXTENDS_TYPES_.length][(EXTENDS_TYPES_.length + 63) >>> 6];");
+        out("for (%s set : EXTENDS_SETS_) {", shortTS);
+        out("%s[] types = set.getTypes();", shortET);
+        out("for (%s child : types) {", shortET);
+        out("int c = extends_ordinal_(child);");
+        out("for (%s parent : types) {", shortET);
+        out("int p = extends_ordinal_(parent);");
+        out("masks[c][p >>> 6] |= 1L << p;");
+        out("}");
+        out("}");
+        out("}");
+        out("return masks;");
+        out("}");
+        newLine();
+        generateOrdinalLookup(shortET, "extends_index_", "extends_ordinal_", "EXTENDS_TYPES_", "EXTENDS_INDEX_");
+        newLine();
+        out("public static boolean extends_matrix_(%s child, %s parent) {", shortET, shortET);
+        out("if (child == parent) return true;");
+        out("int c = extends_ordinal_(child);");
+        out("int p = c < 0 ? -1 : extends_ordinal_(parent);");
+        out("return p >= 0 && (EXTENDS_MATRIX_[c][p >>> 6] & (1L << p)) != 0;");
+        out("}");
+        newLine();
+    }
+
+    /**
+     * Emits the ordinal lookup shared by the extends matrix and the index-based element factory:
+     * a {@code short[]} table keyed by {@code IElementType.getIndex()} holding ordinal + 1,
+     * with the hit confirmed by identity against the types array.
+     */
+    private void generateOrdinalLookup(
+        @Nonnull String shortET,
+        @Nonnull String indexMethod,
+        @Nonnull String ordinalMethod,
+        @Nonnull String typesField,
+        @Nonnull String indexField
+    ) {
+        out("private static short[] %s(%s[] types) {", indexMethod, shortET);
+        out("int max = 0;");
+        out("for (%s type : types) max = Math.max(max, type.getIndex());", shortET);
+        out("short[] index = new short[max + 1];");
+        out("for (int i = 0; i < types.length; i++) index[types[i].getIndex()] = (short)(i + 1);");
+        out("return index;");
+        out("}");
+        newLine();
+        out("private static int %s(%s type) {", ordinalMethod, shortET);
+        out("int i = type.getIndex();");
+        out("int c = i >= 0 && i < %s.length ? %s[i] - 1 : -1;", indexField, indexField);
+        out("return c >= 0 && %s[c] == type ? c : -1;", typesField);
+        out("}");
+    }
+
+    /**
+     * Per-parse table of offsets at which {@code memoize} rules have already failed,
+     * stored in the builder user data and released by {@code parse_root_}.
+     * A failure is recorded only if no recursion guard tripped meanwhile, as such a failure depends on the level.
+     * A replayed failure adds the rule name as the expected variant, like the rule first check does,
+     * and the table is bypassed in completion mode where every variant counts.
+     */
+    private void generateMemoTable(@Nonnull String shortPB) {
+        String shortBitSet = shorten("java.util.BitSet");
+        String shortES = !G.generateFQN ? "ErrorState" : PlatformClass.GENERATED_PARSER_UTIL_BASE.select(myVersion) + ".ErrorState";
+        out("private static final class Memo_ {");
+        out("final %s[] failed = new %s[%d];", shortBitSet, shortBitSet, myMemoRules.size());
+        out("int size;");
+        out("int trips;");
+        out("}");
+        newLine();
+        out("private static final %s<Memo_> MEMO_ = %s.create(\"MEMO_\");", shorten(PlatformClass.KEY), shorten(PlatformClass.KEY));
+        out("private static final int MEMO_LIMIT_ = %d;", G.memoizeLimit);
+        newLine();
+        out("private static Memo_ memo_(%s %s) {", shortPB, N.builder);
+        out("Memo_ memo = %s.getUserData(MEMO_);", N.builder);
+        out("if (memo == null) %s.putUserData(MEMO_, memo = new Memo_());", N.builder);
+        out("return memo;");
+        out("}");
+        newLine();
+        out("public static boolean memo_guard_(%s %s, int %s, String funcName) {", shortPB, N.builder, N.level);
+        out("if (recursion_guard_(%s, %s, funcName)) return true;", N.builder, N.level);
+        out("memo_(%s).trips++;", N.builder);
+        out("return false;");
+        out("}");
+        newLine();
+        out("public static int memo_trips_(%s %s) {", shortPB, N.builder);
+        out("Memo_ memo = %s.getUserData(MEMO_);", N.builder);
+        out("return memo == null ? 0 : memo.trips;");
+        out("}");
+        newLine();
+        out("public static boolean memo_failed_(%s %s, int rule, int %s, String name) {", shortPB, N.builder, N.pos);
+        out("if (%s.get(%s).completionState != null) return false;", shortES, N.builder);
+        out("Memo_ memo = %s.getUserData(MEMO_);", N.builder);
+        out("%s set = memo == null ? null : memo.failed[rule];", shortBitSet);
+        out("if (set == null || !set.get(%s)) return false;", N.pos);
+        out("addVariant(%s, name);", N.builder);
+        out("return true;");
+        out("}");
+        newLine();
+        out("public static void memo_fail_(%s %s, int rule, int %s, int trips) {", shortPB, N.builder, N.pos);
+        out("if (current_position_(%s) != %s) return;", N.builder, N.pos);
+        out("if (%s.get(%s).completionState != null) return;", shortES, N.builder);
+        out("Memo_ memo = memo_(%s);", N.builder);
+        out("if (memo.trips != trips || memo.size >= MEMO_LIMIT_) return;");
+        out("%s set = memo.failed[rule];", shortBitSet);
+        out("if (set == null) memo.failed[rule] = set = new %s();", shortBitSet);
+        out("if (!set.get(%s)) {", N.pos);
+        out("set.set(%s);", N.pos);
+        out("memo.size++;");
+        out("}");
+        out("}");
+        newLine();
     }
 
     @Nonnull
@@ -937,7 +1366,7 @@ public class ParserGenerator {
         }
         out("public %s %s%s {", Case.LOWER.apply(javaType.name()).replace('_', ' '), shortClassName, sb.toString());
         newLine();
-        myShortener = shortener;
+        myOutput.get().shortener = shortener;
     }
 
     private void generateFileHeader(String className) {
@@ -946,7 +1375,7 @@ public class ParserGenerator {
         if (StringUtil.isNotEmpty(text)) {
             out(text);
         }
-        myOffset = 0;
+        myOutput.get().offset = 0;
     }
 
     private String getStringOrFile(String classHeader) {
@@ -1031,8 +1460,17 @@ public class ParserGenerator {
             N.level,
             extraParameters
         );
+        Integer memoId = isRule ? myMemoRules.get(rule.getName()) : null;
+        if (memoId != null) {
+            out("int %s = current_position_(%s);", N.memoPos, N.builder);
+            out("int %s = memo_trips_(%s);", N.memoTrips, N.builder);
+            out(
+                "if (memo_failed_(%s, %d, %s, %s)) return false;",
+                N.builder, memoId, N.memoPos, quote(getRuleDisplayName(myVersion, rule, !isPrivate))
+            );
+        }
         if (isSingleNode) {
-            if (isPrivate && !isLeftInner && recoverWhile == null && frameName == null) {
+            if (isPrivate && !isLeftInner && recoverWhile == null && frameName == null && memoId == null) {
                 String nodeCall = generateNodeCall(rule, node, getNextName(funcName, 0)).render(N);
                 out("return %s;", nodeCall);
                 out("}");
@@ -1047,7 +1485,7 @@ public class ParserGenerator {
         }
 
         if (!children.isEmpty()) {
-            out("if (!recursion_guard_(%s, %s, \"%s\")) return false;", N.builder, N.level, funcName);
+            out("if (!%s(%s, %s, \"%s\")) return false;", getRecursionGuard(), N.builder, N.level, funcName);
         }
 
         if (recoverWhile == null && (isRule || firstNonTrivial)) {
@@ -1115,85 +1553,121 @@ public class ParserGenerator {
             }
         }
 
-        int[] skip = {0};
-        for (int i = 0, p = 0, childrenSize = children.size(); i < childrenSize; i++) {
-            BnfExpression child = children.get(i);
-
-            NodeCall nodeCall = generateNodeCall(rule, child, getNextName(funcName, i));
-            if (type == BNF_CHOICE) {
-                if (isRule && i == 0 && G.generateTokenSets) {
-                    ConsumeType consumeType = getEffectiveConsumeType(rule, node, null);
-                    NodeCall tokenChoice = generateTokenChoiceCall(children, consumeType, funcName);
-                    if (tokenChoice != null) {
-                        out("%s = %s;", N.result, tokenChoice.render(N));
-                        break;
-                    }
+        boolean isTokenChoice = type == BNF_CHOICE && isRule && G.generateTokenSets && getTokenNames(myFile, children, 2) != null;
+        List<NodeCall> childCalls = new ArrayList<>(children.size());
+        if (!isTokenChoice) {
+            for (int i = 0, childrenSize = children.size(); i < childrenSize; i++) {
+                childCalls.add(generateNodeCall(rule, children.get(i), getNextName(funcName, i)));
+            }
+        }
+        List<List<BnfExpression>> parts = isTokenChoice ? null : splitMethodBody(rule, funcName, type, children, childCalls, pinMatcher);
+        List<List<String>> dispatchTokens = parts == null && type == BNF_CHOICE && !isTokenChoice && G.generateChoiceDispatch
+            ? getChoiceDispatchTokens(rule, children)
+            : null;
+        if (parts != null) {
+            String partArguments = metaParameters.stream().map(it -> ", " + it).collect(Collectors.joining());
+            for (int k = 0, partsSize = parts.size(); k < partsSize; k++) {
+                String partCall = format("%s(%s, %s%s)", getSplitPartName(funcName, k), N.builder, N.level, partArguments);
+                if (type == BNF_CHOICE) {
+                    out("%s%s = %s;", k > 0 ? format("if (!%s) ", N.result) : "", N.result, partCall);
+                }
+                else if (k == 0) {
+                    out("%s = %s;", N.result, partCall);
+                }
+                else {
+                    out("%s = %s && %s;", N.result, N.result, partCall);
                 }
-                out("%s%s = %s;", i > 0 ? format("if (!%s) ", N.result) : "", N.result, nodeCall.render(N));
             }
-            else if (type == BNF_SEQUENCE) {
-                if (skip[0] == 0) {
-                    ConsumeType consumeType = getEffectiveConsumeType(rule, node, null);
-                    nodeCall = generateTokenSequenceCall(children, i, pinMatcher, pinApplied, skip, nodeCall, false, consumeType);
-                    if (i == 0) {
-                        out("%s = %s;", N.result, nodeCall.render(N));
+        }
+        else if (dispatchTokens != null) {
+            generateChoiceDispatch(funcName, childCalls, dispatchTokens);
+        }
+        else {
+            int[] skip = {0};
+            for (int i = 0, p = 0, childrenSize = children.size(); i < childrenSize; i++) {
+                BnfExpression child = children.get(i);
+
+                NodeCall nodeCall = isTokenChoice ? generateNodeCall(rule, child, getNextName(funcName, i)) : childCalls.get(i);
+                if (type == BNF_CHOICE) {
+                    if (isRule && i == 0 && G.generateTokenSets) {
+                        ConsumeType consumeType = getEffectiveConsumeType(rule, node, null);
+                        NodeCall tokenChoice = generateTokenChoiceCall(children, consumeType, funcName);
+                        if (tokenChoice != null) {
+                            out("%s = %s;", N.result, tokenChoice.render(N));
+                            break;
+                        }
                     }
-                    else {
-                        if (pinApplied && G.generateExtendedPin) {
-                            if (i == childrenSize - 1) {
-                                // do not report error for last child
-                                if (i == p + 1) {
-                                    out("%s = %s && %s;", N.result, N.result, nodeCall.render(N));
+                    out("%s%s = %s;", i > 0 ? format("if (!%s) ", N.result) : "", N.result, nodeCall.render(N));
+                }
+                else if (type == BNF_SEQUENCE) {
+                    if (skip[0] == 0) {
+                        ConsumeType consumeType = getEffectiveConsumeType(rule, node, null);
+                        nodeCall = generateTokenSequenceCall(
+                            getNextName(funcName, i), children, i, pinMatcher, pinApplied, skip, nodeCall, false, consumeType
+                        );
+                        if (i == 0) {
+                            out("%s = %s;", N.result, nodeCall.render(N));
+                        }
+                        else {
+                            if (pinApplied && G.generateExtendedPin) {
+                                if (i == childrenSize - 1) {
+                                    // do not report error for last child
+                                    if (i == p + 1) {
+                                        out("%s = %s && %s;", N.result, N.result, nodeCall.render(N));
+                                    }
+                                    else {
+                                        out("%s = %s && %s && %s;", N.result, N.pinned, nodeCall.render(N), N.result);
+                                    }
+                                }
+                                else if (i == p + 1) {
+                                    out("%s = %s && report_error_(%s, %s);", N.result, N.result, N.builder, nodeCall.render(N));
                                 }
                                 else {
-                                    out("%s = %s && %s && %s;", N.result, N.pinned, nodeCall.render(N), N.result);
+                                    out(
+                                        "%s = %s && report_error_(%s, %s) && %s;",
+                                        N.result, N.pinned, N.builder, nodeCall.render(N), N.result
+                                    );
                                 }
                             }
-                            else if (i == p + 1) {
-                                out("%s = %s && report_error_(%s, %s);", N.result, N.result, N.builder, nodeCall.render(N));
-                            }
                             else {
-                                out("%s = %s && report_error_(%s, %s) && %s;", N.result, N.pinned, N.builder, nodeCall.render(N), N.result);
+                                out("%s = %s && %s;", N.result, N.result, nodeCall.render(N));
                             }
                         }
-                        else {
-                            out("%s = %s && %s;", N.result, N.result, nodeCall.render(N));
+                    }
+                    else {
+                        skip[0]--; // we are inside already generated token sequence
+                        if (pinApplied && i == p + 1) {
+                            p++; // shift pinned index as we skip
                         }
                     }
-                }
-                else {
-                    skip[0]--; // we are inside already generated token sequence
-                    if (pinApplied && i == p + 1) {
-                        p++; // shift pinned index as we skip
+                    if (pinned && !pinApplied && pinMatcher.matches(i, child)) {
+                        pinApplied = true;
+                        p = i;
+                        out("%s = %s; // pin = %s", N.pinned, N.result, pinMatcher.pinValue);
                     }
                 }
-                if (pinned && !pinApplied && pinMatcher.matches(i, child)) {
-                    pinApplied = true;
-                    p = i;
-                    out("%s = %s; // pin = %s", N.pinned, N.result, pinMatcher.pinValue);
+                else if (type == BNF_OP_OPT) {
+                    out(nodeCall.render(N) + ";");
                 }
-            }
-            else if (type == BNF_OP_OPT) {
-                out(nodeCall.render(N) + ";");
-            }
-            else if (type == BNF_OP_ONEMORE || type == BNF_OP_ZEROMORE) {
-                if (type == BNF_OP_ONEMORE) {
+                else if (type == BNF_OP_ONEMORE || type == BNF_OP_ZEROMORE) {
+                    if (type == BNF_OP_ONEMORE) {
+                        out("%s = %s;", N.result, nodeCall.render(N));
+                    }
+                    out("while (%s) {", alwaysTrue ? "true" : N.result);
+                    out("int %s = current_position_(%s);", N.pos, N.builder);
+                    out("if (!%s) break;", nodeCall.render(N));
+                    out("if (!empty_element_parsed_guard_(%s, \"%s\", %s)) break;", N.builder, funcName, N.pos);
+                    out("}");
+                }
+                else if (type == BNF_OP_AND) {
                     out("%s = %s;", N.result, nodeCall.render(N));
                 }
-                out("while (%s) {", alwaysTrue ? "true" : N.result);
-                out("int %s = current_position_(%s);", N.pos, N.builder);
-                out("if (!%s) break;", nodeCall.render(N));
-                out("if (!empty_element_parsed_guard_(%s, \"%s\", %s)) break;", N.builder, funcName, N.pos);
-                out("}");
-            }
-            else if (type == BNF_OP_AND) {
-                out("%s = %s;", N.result, nodeCall.render(N));
-            }
-            else if (type == BNF_OP_NOT) {
-                out("%s = !%s;", N.result, nodeCall.render(N));
-            }
-            else {
-                addWarning(myFile.getProject(), "unexpected: " + type);
+                else if (type == BNF_OP_NOT) {
+                    out("%s = !%s;", N.result, nodeCall.render(N));
+                }
+                else {
+                    addWarning(myFile.getProject(), "unexpected: " + type);
+                }
             }
         }
 
@@ -1232,11 +1706,202 @@ public class ParserGenerator {
             }
         }
 
+        if (memoId != null && !alwaysTrue) {
+            String failed = pinned ? format("!%s && !%s", N.result, N.pinned) : "!" + N.result;
+            out("if (%s) memo_fail_(%s, %d, %s, %s);", failed, N.builder, memoId, N.memoPos, N.memoTrips);
+        }
         out("return %s;", alwaysTrue ? "true" : N.result + (pinned ? format(" || %s", N.pinned) : ""));
         out("}");
+        if (parts != null) {
+            ConsumeType consumeType = getEffectiveConsumeType(rule, node, null);
+            for (int k = 0, startIndex = 0, partsSize = parts.size(); k < partsSize; startIndex += parts.get(k).size(), k++) {
+                List<BnfExpression> part = parts.get(k);
+                List<NodeCall> partCalls = childCalls.subList(startIndex, startIndex + part.size());
+                newLine();
+                generateSplitPart(funcName, type, k, part, partCalls, pinMatcher, consumeType, extraParameters);
+            }
+        }
         generateNodeChildren(rule, funcName, children, visited);
     }
 
+    /**
+     * Computes the token types each choice branch may start with.
+     * Returns {@code null} when some branch FIRST set is unknown, contains non-tokens, may be empty
+     * or intersects with another branch FIRST set, i.e. when the ordered choice must be kept.
+     * The ordered choice is also kept when the first tokens are consumed with a non-default consume type,
+     * since {@code nextTokenIsFast} matches neither smart nor fast keyword text.
+     */
+    @Nullable
+    @RequiredReadAction
+    private List<List<String>> getChoiceDispatchTokens(@Nonnull BnfRule rule, @Nonnull List<BnfExpression> children) {
+        if (children.size() < 2 || getRuleConsumeType(rule, null) != ConsumeType.DEFAULT) {
+            return null;
+        }
+        BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+        Set<String> allTokens = new HashSet<>();
+        List<List<String>> result = new ArrayList<>(children.size());
+        for (BnfExpression child : children) {
+            Set<String> tokenTypes = new TreeSet<>();
+            for (BnfExpression expression : analyzer.calcFirst(child)) {
+                if (expression == BNF_MATCHES_EOF || expression == BNF_MATCHES_ANY || expression == BNF_MATCHES_NOTHING) {
+                    return null;
+                }
+                String expressionString = BnfFirstNextAnalyzer.asString(expression);
+                String t = myFile.getRule(expressionString) != null ? null : firstToElementType(expressionString);
+                if (t == null) {
+                    return null;
+                }
+                BnfRule owner = PsiTreeUtil.getParentOfType(expression, BnfRule.class);
+                if (owner != null && owner != rule && getRuleConsumeType(owner, rule) != ConsumeType.DEFAULT) {
+                    return null;
+                }
+                tokenTypes.add(t);
+            }
+            if (tokenTypes.isEmpty()) {
+                return null;
+            }
+            for (String t : tokenTypes) {
+                if (!allTokens.add(t)) {
+                    return null;
+                }
+            }
+            result.add(new ArrayList<>(tokenTypes));
+        }
+        return result;
+    }
+
+    private void generateChoiceDispatch(
+        @Nonnull String funcName,
+        @Nonnull List<NodeCall> childCalls,
+        @Nonnull List<List<String>> dispatchTokens
+    ) {
+        // in completion mode every branch is tried to collect its variants
+        out("if (ErrorState.get(%s).completionState != null) {", N.builder);
+        generateOrderedChoice(childCalls);
+        for (int i = 0, size = childCalls.size(); i < size; i++) {
+            List<String> tokenTypes = dispatchTokens.get(i);
+            StringBuilder sb = new StringBuilder();
+            if (G.generateTokenArrays && tokenTypes.size() > 1) {
+                sb.append(getTokenArrayRef(getNextName(funcName, i), tokenTypes));
+            }
+            else {
+                appendTokenTypes(sb, tokenTypes);
+            }
+            out("}");
+            out("else if (nextTokenIsFast(%s, %s)) {", N.builder, sb);
+            out("%s = %s;", N.result, childCalls.get(i).render(N));
+        }
+        out("}");
+        // no branch can match, keep the ordered choice for error reporting
+        out("else {");
+        generateOrderedChoice(childCalls);
+        out("}");
+    }
+
+    private void generateOrderedChoice(@Nonnull List<NodeCall> childCalls) {
+        for (int i = 0, size = childCalls.size(); i < size; i++) {
+            out("%s%s = %s;", i > 0 ? format("if (!%s) ", N.result) : "", N.result, childCalls.get(i).render(N));
+        }
+    }
+
+    /**
+     * Splits the children of a choice or an unpinned sequence into several parts
+     * if the estimated bytecode size of the method exceeds {@link GenOptions#methodSizeLimit},
+     * so that HotSpot does not refuse to compile or inline it.
+     * The estimate is an upper bound of the javac output, see {@link #METHOD_SIZE_OVERHEAD}.
+     *
+     * @return parts to be generated as separate methods or {@code null} if the method is small enough
+     */
+    @Nullable
+    @RequiredReadAction
+    private List<List<BnfExpression>> splitMethodBody(
+        @Nonnull BnfRule rule,
+        @Nonnull String funcName,
+        @Nonnull IElementType type,
+        @Nonnull List<BnfExpression> children,
+        @Nonnull List<NodeCall> childCalls,
+        @Nonnull PinMatcher pinMatcher
+    ) {
+        if (G.methodSizeLimit <= 0 || children.size() < 2) {
+            return null;
+        }
+        if (type != BNF_CHOICE && (type != BNF_SEQUENCE || pinMatcher.active())) {
+            return null;
+        }
+        int[] sizes = new int[children.size()];
+        int total = METHOD_SIZE_OVERHEAD;
+        int statementSize = type == BNF_CHOICE ? CHOICE_STATEMENT_SIZE : SEQUENCE_STATEMENT_SIZE;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = statementSize + NodeCalls.estimateBytecodeSize(childCalls.get(i));
+            total += sizes[i];
+        }
+        if (total <= G.methodSizeLimit) {
+            return null;
+        }
+        List<List<BnfExpression>> parts = new ArrayList<>();
+        int start = 0;
+        int partSize = METHOD_SIZE_OVERHEAD;
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > start && partSize + sizes[i] > G.methodSizeLimit) {
+                parts.add(children.subList(start, i));
+                start = i;
+                partSize = METHOD_SIZE_OVERHEAD;
+            }
+            partSize += sizes[i];
+        }
+        parts.add(children.subList(start, sizes.length));
+        addWarning(
+            myFile.getProject(),
+            "%s: %s split into %d methods (estimated size %d bytes, limit %d)",
+            rule.getName(), funcName, parts.size(), total, G.methodSizeLimit
+        );
+        return parts;
+    }
+
+    @RequiredReadAction
+    private void generateSplitPart(
+        @Nonnull String funcName,
+        @Nonnull IElementType type,
+        int partIndex,
+        @Nonnull List<BnfExpression> part,
+        @Nonnull List<NodeCall> partCalls,
+        @Nonnull PinMatcher pinMatcher,
+        @Nonnull ConsumeType consumeType,
+        @Nonnull String extraParameters
+    ) {
+        out(
+            "private static boolean %s(%s %s, int %s%s) {",
+            getSplitPartName(funcName, partIndex),
+            shorten(PlatformClass.PSI_BUILDER),
+            N.builder,
+            N.level,
+            extraParameters
+        );
+        out("boolean %s;", N.result);
+        int[] skip = {0};
+        for (int i = 0, size = part.size(); i < size; i++) {
+            NodeCall nodeCall = partCalls.get(i);
+            if (type == BNF_CHOICE) {
+                out("%s%s = %s;", i > 0 ? format("if (!%s) ", N.result) : "", N.result, nodeCall.render(N));
+            }
+            else if (skip[0] == 0) {
+                String nextName = getNextName(getSplitPartName(funcName, partIndex), i);
+                nodeCall = generateTokenSequenceCall(nextName, part, i, pinMatcher, false, skip, nodeCall, false, consumeType);
+                if (i == 0) {
+                    out("%s = %s;", N.result, nodeCall.render(N));
+                }
+                else {
+                    out("%s = %s && %s;", N.result, N.result, nodeCall.render(N));
+                }
+            }
+            else {
+                skip[0]--; // we are inside already generated token sequence
+            }
+        }
+        out("return %s;", N.result);
+        out("}");
+    }
+
     /**
      * @noinspection StringEquality
      */
@@ -1267,7 +1932,12 @@ public class ParserGenerator {
         }
         StringBuilder sb = new StringBuilder(format("!nextTokenIsFast(%s, ", N.builder));
 
-        appendTokenTypes(sb, tokenTypes);
+        if (G.generateTokenArrays && tokenTypes.size() > 1) {
+            sb.append(getTokenArrayRef(rule.getName() + "_auto_recover", tokenTypes));
+        }
+        else {
+            appendTokenTypes(sb, tokenTypes);
+        }
         sb.append(")");
 
         String constantName = rule.getName() + "_auto_recover_";
@@ -1321,10 +1991,16 @@ public class ParserGenerator {
                 List<String> tokenTypes = entry.getValue();
                 StringBuilder sb = new StringBuilder("!");
                 sb.append("nextTokenIs").append(consumeType.getMethodSuffix()).append("(").append(N.builder).append(", ");
-                if (!dropFrameName && consumeType == ConsumeType.DEFAULT) {
+                boolean withFrameName = !dropFrameName && consumeType == ConsumeType.DEFAULT;
+                if (withFrameName) {
                     sb.append(StringUtil.notNullize(frameName, "\"\"")).append(", ");
                 }
-                appendTokenTypes(sb, tokenTypes);
+                if (G.generateTokenArrays && (withFrameName || tokenTypes.size() > 1)) {
+                    sb.append(getTokenArrayRef(getFuncName(rule) + "_first", tokenTypes));
+                }
+                else {
+                    appendTokenTypes(sb, tokenTypes);
+                }
                 sb.append(")");
                 return sb;
             }).collect(Collectors.joining(" &&\n  ", "if (", ") return false;"));
@@ -1429,6 +2105,7 @@ public class ParserGenerator {
     @Nonnull
     @RequiredReadAction
     private NodeCall generateTokenSequenceCall(
+        String nextName,
         List<BnfExpression> children,
         int startIndex,
         PinMatcher pinMatcher,
@@ -1463,6 +2140,10 @@ public class ParserGenerator {
         skip[0] = list.size() - 1;
         String consumeMethodName = (rollbackOnFail ? "parseTokens" : "consumeTokens") +
             (consumeType == ConsumeType.SMART ? consumeType.getMethodSuffix() : "");
+        if (G.generateTokenArrays) {
+            // pass the hoisted array as the varargs argument
+            return new ConsumeTokensCall(consumeMethodName, pin, Collections.singletonList(getTokenArrayRef(nextName, list)));
+        }
         return new ConsumeTokensCall(consumeMethodName, pin, list);
     }
 
@@ -1569,7 +2250,7 @@ public class ParserGenerator {
                     mySimpleTokens.put(t, null);
                 }
             }
-            return generateTokenSequenceCall(childExpressions, 0, pinMatcher, false, new int[]{0}, nodeCall, true, consumeType);
+            return generateTokenSequenceCall(nextName, childExpressions, 0, pinMatcher, false, new int[]{0}, nodeCall, true, consumeType);
         }
         else if (type == BNF_EXTERNAL_EXPRESSION) {
             List<BnfExpression> expressions = ((BnfExternalExpression) node).getExpressionList();
@@ -1755,6 +2436,14 @@ public class ParserGenerator {
         return new ConsumeTokenCall(consumeType, "\"" + tokenText + "\"");
     }
 
+    /**
+     * Recursion guard call of generated methods: with {@code memoize} rules it also counts guard trips.
+     */
+    @Nonnull
+    String getRecursionGuard() {
+        return myMemoRules.isEmpty() ? "recursion_guard_" : "memo_guard_";
+    }
+
     private String getElementType(String token) {
         return ParserGeneratorUtil.getTokenType(myFile, token, G.generateTokenCase);
     }
@@ -1765,16 +2454,30 @@ public class ParserGenerator {
 
     /*ElementTypes******************************************************************/
 
-    private void generateElementTypesHolder(String className, Map<String, BnfRule> sortedCompositeTypes) {
+    /**
+     * Generates the element type holder interface, or one of its groups when {@link GenOptions#generateGroupedHolder} is set.
+     * In that case the holder only extends the groups, so {@code static import} usages keep compiling,
+     * while the JVM initializes each group separately on first access to its fields.
+     */
+    private void generateElementTypesHolder(
+        String className,
+        Map<String, BnfRule> sortedCompositeTypes,
+        boolean withElements,
+        boolean withTokens,
+        String... groupHolders
+    ) {
+        boolean isMainHolder = className.equals(myTypeHolderClass);
         String tokenTypeClass = getRootAttribute(myVersion, myFile, KnownAttribute.TOKEN_TYPE_CLASS);
         String tokenTypeFactory = getRootAttribute(myVersion, myFile, KnownAttribute.TOKEN_TYPE_FACTORY);
         Set<String> imports = new LinkedHashSet<>();
-        imports.add(PlatformClass.IELEMENT_TYPE.select(myVersion));
-        if (G.generatePsi) {
+        if (withElements || withTokens) {
+            imports.add(PlatformClass.IELEMENT_TYPE.select(myVersion));
+        }
+        if (G.generatePsi && isMainHolder) {
             imports.add(PlatformClass.PSI_ELEMENT.select(myVersion));
             imports.add(PlatformClass.AST_NODE.select(myVersion));
         }
-        if (G.generateTokenSets && !myTokenSets.isEmpty()) {
+        if (G.generateTokenSets && !myTokenSets.isEmpty() && isMainHolder) {
             imports.add(PlatformClass.TOKEN_SET.select(myVersion));
         }
         boolean useExactElements = "all".equals(G.generateExactTypes) || G.generateExactTypes.contains("elements");
@@ -1786,7 +2489,14 @@ public class ParserGenerator {
             RuleInfo ruleInfo = ruleInfo(rule);
             String elementTypeClass = getAttribute(myVersion, rule, KnownAttribute.ELEMENT_TYPE_CLASS);
             String elementTypeFactory = getAttribute(myVersion, rule, KnownAttribute.ELEMENT_TYPE_FACTORY);
+            if (myReparseableRules.containsKey(rule.getName())) {
+                elementTypeClass = myReparseableTypeClass;
+                elementTypeFactory = null;
+            }
             compositeToClassAndFactoryMap.put(elementType, Trinity.create(elementTypeClass, elementTypeFactory, ruleInfo));
+            if (!withElements) {
+                continue;
+            }
             if (elementTypeFactory != null) {
                 imports.add(StringUtil.getPackageName(elementTypeFactory));
             }
@@ -1794,16 +2504,16 @@ public class ParserGenerator {
                 ContainerUtil.addIfNotNull(imports, elementTypeClass);
             }
         }
-        if (tokenTypeFactory != null) {
+        if (withTokens && tokenTypeFactory != null) {
             imports.add(StringUtil.getPackageName(tokenTypeFactory));
         }
-        else {
+        else if (withTokens) {
             ContainerUtil.addIfNotNull(imports, tokenTypeClass);
         }
 
-        generateClassHeader(className, imports, "", Java.INTERFACE);
+        generateClassHeader(className, imports, "", Java.INTERFACE, groupHolders);
 
-        if (G.generateElementTypes) {
+        if (withElements) {
             for (String elementType : sortedCompositeTypes.keySet()) {
                 String exactType = null;
                 Trinity<String, String, RuleInfo> info = compositeToClassAndFactoryMap.get(elementType);
@@ -1817,11 +2527,17 @@ public class ParserGenerator {
                 }
                 String fieldType = Objects.requireNonNull(useExactElements ? exactType : PlatformClass.IELEMENT_TYPE.select(myVersion));
                 String callFix = elementCreateCall.endsWith("IElementType") ? ", null" : "";
+                Pair<String, String> delimiters = myReparseableRules.get(info.third.name);
+                if (delimiters != null) {
+                    callFix = format(", %s, %s", delimiterSupplier(delimiters.first), delimiterSupplier(delimiters.second));
+                }
                 out("%s %s = %s(\"%s\"%s);", shorten(fieldType), elementType, elementCreateCall, elementType, callFix);
             }
         }
-        if (G.generateTokenTypes) {
-            newLine();
+        if (withTokens) {
+            if (isMainHolder) {
+                newLine();
+            }
             String exactType = null;
             Map<String, String> sortedTokens = new TreeMap<>();
             String tokenCreateCall;
@@ -1852,11 +2568,75 @@ public class ParserGenerator {
                     callFix
                 );
             }
+        }
+        if (isMainHolder && G.generateTokenTypes) {
             generateTokenSets();
         }
         out("}");
     }
 
+    /**
+     * Delimiter token types are read lazily: token fields are declared after element type fields,
+     * and with grouped holders they are not even visible from the elements group.
+     */
+    @Nonnull
+    private String delimiterSupplier(@Nullable String tokenName) {
+        if (tokenName == null) {
+            return "null";
+        }
+        String tokenType = getElementType(tokenName);
+        return "() -> " + (G.generateGroupedHolder ? StringUtil.getShortName(myTypeHolderClass) + "." + tokenType : tokenType);
+    }
+
+    /**
+     * Element type for {@code reparseable} rules. Its content is parsed lazily by the grammar parser
+     * with the element type as root, see {@code parse_root_}, and a text change inside it is reparsed in place
+     * as long as the language lexer still sees the text as one balanced pair of rule delimiters.
+     */
+    private void generateReparseableElementType() {
+        String language = getRootAttribute(myVersion, myFile, KnownAttribute.ELEMENT_TYPE_LANGUAGE);
+        Set<String> imports = new LinkedHashSet<>();
+        imports.add(PlatformClass.IREPARSEABLE_ELEMENT_TYPE.select(myVersion));
+        imports.add(PlatformClass.IELEMENT_TYPE.select(myVersion));
+        imports.add(PlatformClass.LANGUAGE.select(myVersion));
+        imports.add(PlatformClass.LANGUAGE_VERSION_UTIL.select(myVersion));
+        imports.add(PlatformClass.LEXER.select(myVersion));
+        imports.add(PlatformClass.PARSER_DEFINITION.select(myVersion));
+        imports.add(PlatformClass.PSI_BUILDER_UTIL.select(myVersion));
+        imports.add(PlatformClass.PROJECT.select(myVersion));
+        imports.add(Supplier.class.getName());
+        imports.add(StringUtil.getPackageName(language));
+        generateClassHeader(myReparseableTypeClass, imports, "", Java.CLASS, PlatformClass.IREPARSEABLE_ELEMENT_TYPE.select(myVersion));
+        String shortClassName = StringUtil.getShortName(myReparseableTypeClass);
+        String shortET = shorten(PlatformClass.IELEMENT_TYPE);
+        String shortSupplier = shorten(Supplier.class.getName());
+        out("private final %s<%s> myOpen;", shortSupplier, shortET);
+        out("private final %s<%s> myClose;", shortSupplier, shortET);
+        newLine();
+        out("public %s(String debugName, %s<%s> open, %s<%s> close) {", shortClassName, shortSupplier, shortET, shortSupplier, shortET);
+        out("super(debugName, %s.%s);", shorten(StringUtil.getPackageName(language)), StringUtil.getShortName(language));
+        out("myOpen = open;");
+        out("myClose = close;");
+        out("}");
+        newLine();
+        out("@Override");
+        out(
+            "public boolean isParsable(CharSequence buffer, %s fileLanguage, %s project) {",
+            shorten(PlatformClass.LANGUAGE), shorten(PlatformClass.PROJECT)
+        );
+        out("if (myOpen == null || myClose == null) return false;");
+        String shortPD = shorten(PlatformClass.PARSER_DEFINITION);
+        out("%s definition = %s.forLanguage(getLanguage());", shortPD, shortPD);
+        out("if (definition == null) return false;");
+        out(
+            "%s lexer = definition.createLexer(%s.findDefaultVersion(getLanguage()));",
+            shorten(PlatformClass.LEXER), shorten(PlatformClass.LANGUAGE_VERSION_UTIL)
+        );
+        out("return %s.hasProperBraceBalance(buffer, lexer, myOpen.get(), myClose.get());", shorten(PlatformClass.PSI_BUILDER_UTIL));
+        out("}");
+        out("}");
+    }
+
     private void generateElementTypesHolderFactory(
         String className,
         Map<String, BnfRule> sortedCompositeTypes,
@@ -1890,7 +2670,10 @@ public class ParserGenerator {
             if (G.generatePsiClassesMap) {
                 imports.add(Collections.class.getName());
                 imports.add(Set.class.getName());
-                imports.add(LinkedHashMap.class.getName());
+                imports.add(G.generatePsiFactoryIndex ? LinkedHashSet.class.getName() : LinkedHashMap.class.getName());
+                if (G.generatePsiFactoryIndex) {
+                    imports.add(Arrays.class.getName());
+                }
             }
             if (G.generatePsiFactory) {
                 if (JBIterable.from(myRuleInfos.values()).find(o -> o.mixedAST) != null) {
@@ -1904,7 +2687,10 @@ public class ParserGenerator {
 
         generateClassHeader(className, imports, "", Java.CLASS);
 
-        if (asMapFactory) {
+        if (G.generatePsiFactoryIndex && (asMapFactory || asFactory)) {
+            generateIndexedElementFactory(sortedCompositeTypes, asMapFactory);
+        }
+        else if (asMapFactory) {
             String shortJC = shorten(Class.class.getName());
             String shortET = shorten(PlatformClass.IELEMENT_TYPE);
             newLine();
@@ -1999,6 +2785,92 @@ public class ParserGenerator {
         out("}");
     }
 
+    /**
+     * Index-based variant of the element factory: each element type gets an ordinal looked up
+     * by {@code IElementType.getIndex()}, so both {@code createElement} and {@code findClass}
+     * cost the same regardless of the number of element types.
+     */
+    private void generateIndexedElementFactory(@Nonnull Map<String, BnfRule> sortedCompositeTypes, boolean asMapFactory) {
+        String shortET = shorten(PlatformClass.IELEMENT_TYPE);
+        List<String> elementTypes = new ArrayList<>();
+        for (String elementType : sortedCompositeTypes.keySet()) {
+            if (!ruleInfo(sortedCompositeTypes.get(elementType)).isAbstract) {
+                elementTypes.add(elementType);
+            }
+        }
+        newLine();
+        out("private static final %s[] ourTypes = {", shortET);
+        out(StringUtil.join(elementTypes, ",\n"));
+        out("};");
+        out("private static final short[] ourIndex = index(ourTypes);");
+        if (asMapFactory) {
+            String shortJC = shorten(Class.class.getName());
+            out("private static final %s<?>[] ourClasses = {", shortJC);
+            out(StringUtil.join(elementTypes, o -> getRulePsiClassName(sortedCompositeTypes.get(o), myImplClassFormat) + ".class", ",\n"));
+            out("};");
+            String shortSet = shorten(Set.class.getName());
+            out(
+                "private static final %s<%s> ourTypeSet = %s.unmodifiableSet(new %s<>(%s.asList(ourTypes)));",
+                shortSet, shortET, shorten(Collections.class.getName()), shorten(LinkedHashSet.class.getName()),
+                shorten(Arrays.class.getName())
+            );
+            newLine();
+            out("public static %s<?> findClass(%s elementType) {", shortJC, shortET);
+            out("int i = ordinal(elementType);");
+            out("return i < 0 ? null : ourClasses[i];");
+            out("}");
+            newLine();
+            out("public static %s<%s> elementTypes() {", shortSet, shortET);
+            out("return ourTypeSet;");
+            out("}");
+        }
+        else {
+            generateIndexedCreateElement(sortedCompositeTypes, elementTypes, false);
+            generateIndexedCreateElement(sortedCompositeTypes, elementTypes, true);
+        }
+        newLine();
+        generateOrdinalLookup(shortET, "index", "ordinal", "ourTypes", "ourIndex");
+    }
+
+    private void generateIndexedCreateElement(
+        @Nonnull Map<String, BnfRule> sortedCompositeTypes,
+        @Nonnull List<String> elementTypes,
+        boolean mixedAST
+    ) {
+        boolean first = true;
+        for (int i = 0, size = elementTypes.size(); i < size; i++) {
+            BnfRule rule = sortedCompositeTypes.get(elementTypes.get(i));
+            if (ruleInfo(rule).mixedAST != mixedAST) {
+                continue;
+            }
+            if (first) {
+                newLine();
+                if (mixedAST) {
+                    out(
+                        "public static %s createElement(%s type) {",
+                        shorten(PlatformClass.COMPOSITE_PSI_ELEMENT), shorten(PlatformClass.IELEMENT_TYPE)
+                    );
+                }
+                else {
+                    out("public static %s createElement(%s node) {", shorten(PlatformClass.PSI_ELEMENT), shorten(PlatformClass.AST_NODE));
+                    out("%s type = node.getElementType();", shorten(PlatformClass.IELEMENT_TYPE));
+                }
+                out("switch (ordinal(type)) {");
+                first = false;
+            }
+            String psiClass = getRulePsiClassName(rule, myImplClassFormat);
+            if (!mixedAST) {
+                psiClass = shorten(getAttribute(myVersion, rule, KnownAttribute.PSI_IMPL_PACKAGE) + "." + psiClass);
+            }
+            out("case %d: return new %s(%s);", i, psiClass, mixedAST ? "type" : "node");
+        }
+        if (!first) {
+            out("}");
+            out("throw new AssertionError(\"Unknown element type: \" + type);");
+            out("}");
+        }
+    }
+
     private boolean isIgnoredWhitespaceToken(@Nonnull String tokenName, @Nonnull String tokenText) {
         return isRegexpToken(tokenText) &&
             !myTokensUsedInGrammar.contains(tokenName) &&
@@ -2154,11 +3026,12 @@ public class ParserGenerator {
             }
         }
         else {
+            NameShortener shortener = myOutput.get().shortener;
             for (NavigatablePsiElement m : constructors) {
                 List<String> types = myJavaHelper.getMethodTypes(myVersion, m);
                 Function<Integer, List<String>> annoProvider = i -> myJavaHelper.getParameterAnnotations(m, (i - 1) / 2);
-                out("public " + shortName + "(" + getParametersString(this, types, 1, 3, substitutor, annoProvider, myShortener) + ") {");
-                out("super(" + getParametersString(this, types, 1, 2, substitutor, annoProvider, myShortener) + ");");
+                out("public " + shortName + "(" + getParametersString(this, types, 1, 3, substitutor, annoProvider, shortener) + ") {");
+                out("super(" + getParametersString(this, types, 1, 2, substitutor, annoProvider, shortener) + ");");
                 out("}");
                 newLine();
             }
@@ -2621,19 +3494,20 @@ public class ParserGenerator {
             out("@" + shorten(s));
         }
         Function<Integer, List<String>> annoProvider = i -> myJavaHelper.getParameterAnnotations(method, (i - 1) / 2);
+        NameShortener shortener = myOutput.get().shortener;
         out(
             "%s%s%s %s(%s)%s%s",
             intf ? "" : "public ",
-            getGenericClauseString(genericParameters, myShortener),
+            getGenericClauseString(genericParameters, shortener),
             returnType,
             methodName,
-            getParametersString(this, methodTypes, offset, 3, genericUnwrapper, annoProvider, myShortener),
-            getThrowsString(exceptionList, myShortener),
+            getParametersString(this, methodTypes, offset, 3, genericUnwrapper, annoProvider, shortener),
+            getThrowsString(exceptionList, shortener),
             intf ? ";" : " {"
         );
         if (!intf) {
             String implUtilRef = shorten(StringUtil.notNullize(myPsiImplUtilClass, KnownAttribute.PSI_IMPL_UTIL_CLASS.getName()));
-            String string = getParametersString(this, methodTypes, offset, 2, genericUnwrapper, annoProvider, myShortener);
+            String string = getParametersString(this, methodTypes, offset, 2, genericUnwrapper, annoProvider, shortener);
             out("%s%s.%s(this%s);", "void".equals(returnType) ? "" : "return ", implUtilRef, methodName,
                 string.isEmpty() ? "" : ", " + string
             );
@@ -31,7 +31,6 @@ import jakarta.annotation.Nullable;
 import java.util.*;
 import java.util.function.Function;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 import static java.lang.String.format;
 import static org.intellij.grammar.generator.RuleGraphHelper.getSynonymTargetOrSelf;
@@ -339,6 +338,11 @@ public class ParserGeneratorUtil {
         return StringUtil.trimEnd(funcName, RESERVED_SUFFIX) + "_" + i;
     }
 
+    @Nonnull
+    static String getSplitPartName(@Nonnull String funcName, int i) {
+        return StringUtil.trimEnd(funcName, RESERVED_SUFFIX) + "_part" + RESERVED_SUFFIX + i;
+    }
+
     @Nonnull
     public static String getGetterName(@Nonnull String text) {
         return toIdentifier(text, NameFormat.from("get"), Case.CAMEL);
@@ -349,6 +353,11 @@ public class ParserGeneratorUtil {
         return toIdentifier(nextName, null, Case.UPPER) + "_TOKENS";
     }
 
+    @Nonnull
+    static String getTokenArrayConstantName(@Nonnull String nextName) {
+        return toIdentifier(nextName, null, Case.UPPER) + "_TOKENS_";
+    }
+
     @RequiredReadAction
     public static boolean isRollbackRequired(@Nullable String version, BnfExpression o, BnfFile file) {
         if (o instanceof BnfStringLiteralExpression) {
@@ -997,25 +1006,18 @@ public class ParserGeneratorUtil {
 
     @Nullable
     public static Pattern compilePattern(String text) {
-        try {
-            return Pattern.compile(text);
-        }
-        catch (PatternSyntaxException e) {
-            return null;
-        }
+        return PatternCache.INSTANCE.compile(text);
     }
 
     public static boolean matchesAny(String regexp, String... text) {
-        try {
-            Pattern p = Pattern.compile(regexp);
+        Pattern p = compilePattern(regexp);
+        if (p != null) {
             for (String s : text) {
                 if (p.matcher(s).matches()) {
                     return true;
                 }
             }
         }
-        catch (PatternSyntaxException ignored) {
-        }
         return false;
     }
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+ */
+
+package org.intellij.grammar.generator;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Application-wide cache of compiled grammar patterns: attribute patterns, pin patterns and regexp tokens.
+ * <p/>
+ * The cache is bounded and evicts the least recently used patterns. Invalid patterns are cached as well.
+ *
+ * @see ParserGeneratorUtil#compilePattern(String)
+ */
+public class PatternCache {
+    public static final PatternCache INSTANCE = new PatternCache(1024);
+
+    private static final Pattern INVALID = Pattern.compile("");
+
+    private final Map<String, Pattern> myPatterns;
+    private final AtomicLong myHits = new AtomicLong();
+    private final AtomicLong myMisses = new AtomicLong();
+
+    public PatternCache(int maxSize) {
+        myPatterns = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled pattern or {@code null} if the text is not a valid regular expression.
+     */
+    @Nullable
+    public Pattern compile(@Nonnull String text) {
+        Pattern pattern;
+        synchronized (myPatterns) {
+            pattern = myPatterns.get(text);
+        }
+        if (pattern != null) {
+            myHits.incrementAndGet();
+            return pattern == INVALID ? null : pattern;
+        }
+        myMisses.incrementAndGet();
+        try {
+            pattern = Pattern.compile(text);
+        }
+        catch (PatternSyntaxException e) {
+            pattern = INVALID;
+        }
+        synchronized (myPatterns) {
+            myPatterns.put(text, pattern);
+        }
+        return pattern == INVALID ? null : pattern;
+    }
+
+    public long getHitCount() {
+        return myHits.get();
+    }
+
+    public long getMissCount() {
+        return myMisses.get();
+    }
+
+    public int size() {
+        synchronized (myPatterns) {
+            return myPatterns.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (myPatterns) {
+            myPatterns.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PatternCache: " + size() + " patterns, " + getHitCount() + " hits, " + getMissCount() + " misses";
+    }
+}
@@ -19,6 +19,8 @@ import consulo.language.psi.util.PsiTreeUtil;
 import consulo.util.collection.HashingStrategy;
 import consulo.util.collection.Maps;
 import consulo.util.collection.MultiMap;
+import consulo.util.collection.primitive.objects.ObjectIntMap;
+import consulo.util.collection.primitive.objects.ObjectMaps;
 import consulo.util.dataholder.Key;
 import consulo.util.lang.ObjectUtil;
 import org.intellij.grammar.KnownAttribute;
@@ -30,6 +32,7 @@ import org.intellij.grammar.psi.impl.GrammarUtil.FakeElementType;
 
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
+import java.lang.ref.SoftReference;
 import java.util.*;
 
 import static org.intellij.grammar.generator.ParserGeneratorUtil.*;
@@ -64,7 +67,18 @@ public class RuleGraphHelper {
     private final String myVersion;
     private final MultiMap<BnfRule, BnfRule> myRuleExtendsMap;
     private final MultiMap<BnfRule, BnfRule> myRulesGraph = newMultiMap();
-    private final Map<BnfRule, Map<PsiElement, Cardinality>> myRuleContentsMap = new HashMap<>();
+    private Map<BnfRule, Map<PsiElement, Cardinality>> myRuleContentsMap = new HashMap<>(); // until compactContents()
+    private final ObjectIntMap<BnfRule> myRuleSlots = ObjectMaps.newObjectIntHashMap(); // rule -> slot + 1
+    private final List<PsiElement> myElements = new ArrayList<>();
+    private int[][] myContentIds;     // slot -> ids of myElements in iteration order
+    private byte[][] myContentCards;  // slot -> cardinality ordinals
+    private Map<PsiElement, Cardinality>[] myContentViews;
+    private int[][] myContentIndex;   // slot -> hash table of content positions + 1 for long contents
+    private int[] myElementHashes;    // id -> CARDINALITY_HASHING_STRATEGY hash of myElements
+    private PsiElement[][] myContentCollapse; // slot -> collapse map values of the rule once contents are built
+    private final Map<BnfRule, Map<PsiElement, Cardinality>> myLateContents = new HashMap<>();
+    private final Map<BnfRule, Long> myRuleStamps = new HashMap<>();
+    private RuleGraphHelper myPrevious; // until compactContents()
     private final MultiMap<BnfRule, PsiElement> myRulesCollapseMap = newMultiMap();
     private final Set<BnfRule> myRulesWithTokens = new HashSet<>();
     private final Map<String, PsiElement> myExternalElements = new HashMap<>();
@@ -74,6 +88,8 @@ public class RuleGraphHelper {
     private static final PsiElement LEFT_MARKER = new FakeBnfExpression(MARKER_TYPE, "LEFT_MARKER");
     private static final PsiElement NOT_EMPTY_MARKER = new FakeBnfExpression(MARKER_TYPE, "NOT_EMPTY_MARKER");
     private static final Object RECURSION_MARKER = "RECURSION_DETECTED";
+    private static final Cardinality[] CARDINALITIES = Cardinality.values();
+    private static final int LINEAR_LOOKUP_LIMIT = 8;
 
     public static String getCardinalityText(Cardinality cardinality) {
         if (cardinality == AT_LEAST_ONE) {
@@ -230,12 +246,23 @@ public class RuleGraphHelper {
     }
 
     private static final Key<CachedValue<RuleGraphHelper>> RULE_GRAPH_HELPER_KEY = Key.create("RULE_GRAPH_HELPER_KEY");
+    private static final Key<SoftReference<RuleGraphHelper>> LAST_RULE_GRAPH_HELPER_KEY = Key.create("LAST_RULE_GRAPH_HELPER_KEY");
 
+    /**
+     * Returns the helper for the current file state.
+     * A helper built for a previous state is used to skip the contents of rules not affected by the modification.
+     * It is held softly, so it never keeps a stale PSI tree from being collected.
+     */
     public static RuleGraphHelper getCached(final BnfFile file) {
         CachedValue<RuleGraphHelper> value = file.getUserData(RULE_GRAPH_HELPER_KEY);
         if (value == null) {
             file.putUserData(RULE_GRAPH_HELPER_KEY, value = CachedValuesManager.getManager(file.getProject()).createCachedValue(
-                () -> new CachedValueProvider.Result<>(new RuleGraphHelper(file), file), false));
+                () -> {
+                    SoftReference<RuleGraphHelper> last = file.getUserData(LAST_RULE_GRAPH_HELPER_KEY);
+                    RuleGraphHelper helper = new RuleGraphHelper(file, buildExtendsMap(file), last == null ? null : last.get());
+                    file.putUserData(LAST_RULE_GRAPH_HELPER_KEY, new SoftReference<>(helper));
+                    return new CachedValueProvider.Result<>(helper, file);
+                }, false));
         }
         return value.getValue();
     }
@@ -245,13 +272,23 @@ public class RuleGraphHelper {
     }
 
     public RuleGraphHelper(BnfFile file, MultiMap<BnfRule, BnfRule> ruleExtendsMap) {
+        this(file, ruleExtendsMap, null);
+    }
+
+    private RuleGraphHelper(BnfFile file, MultiMap<BnfRule, BnfRule> ruleExtendsMap, @Nullable RuleGraphHelper previous) {
         myFile = file;
         myVersion = file.getVersion();
         myRuleExtendsMap = ruleExtendsMap;
+        myPrevious = previous != null && previous.myFile == file ? previous : null;
+        if (myPrevious != null) {
+            myExternalElements.putAll(myPrevious.myExternalElements);
+        }
 
         buildRulesGraph();
         buildCollapseMap();
+        buildRuleStamps();
         buildContentsMap();
+        compactContents();
     }
 
     public MultiMap<BnfRule, BnfRule> getRuleExtendsMap() {
@@ -297,6 +334,94 @@ public class RuleGraphHelper {
         }
     }
 
+    /**
+     * The contents of a rule depend on the rules reachable from it in the rules graph,
+     * the collapse map and the file-wide attributes. The stamp of a rule combines all of them,
+     * so contents built for an equal stamp in a previous file state can be reused as is.
+     * Every value is combined in a fixed order, texts together with their lengths,
+     * so that swapped or moved texts do not cancel out as they would with a sum.
+     */
+    private void buildRuleStamps() {
+        List<BnfRule> rules = myFile.getRules();
+        long fileStamp = combine(myVersion == null ? 0 : myVersion.hashCode(), rules.isEmpty() ? 0 : rules.get(0).getName().hashCode());
+        for (BnfAttrs attrs : myFile.getAttributes()) {
+            fileStamp = combineText(fileStamp, attrs);
+        }
+        for (Map.Entry<BnfRule, Collection<BnfRule>> e : myRuleExtendsMap.entrySet()) {
+            fileStamp = combine(fileStamp, e.getKey().getName().hashCode());
+            for (BnfRule rule : e.getValue()) {
+                fileStamp = combine(fileStamp, rule.getName().hashCode());
+            }
+        }
+        Map<BnfRule, Integer> indices = new HashMap<>();
+        long[] ownStamps = new long[rules.size()];
+        for (int i = 0; i < ownStamps.length; i++) {
+            BnfRule rule = rules.get(i);
+            indices.putIfAbsent(rule, i);
+            long stamp = combineText(0, rule);
+            for (PsiElement r : myRulesCollapseMap.get(rule)) {
+                stamp = combineText(stamp, r);
+            }
+            ownStamps[i] = stamp;
+        }
+        BitSet closure = new BitSet();
+        Deque<BnfRule> queue = new ArrayDeque<>();
+        for (int i = 0; i < ownStamps.length; i++) {
+            queue.add(rules.get(i));
+            closure.set(i);
+            for (BnfRule r = queue.poll(); r != null; r = queue.poll()) {
+                for (BnfRule sub : myRulesGraph.get(r)) {
+                    Integer id = indices.get(sub);
+                    if (id != null && !closure.get(id)) {
+                        closure.set(id);
+                        queue.add(sub);
+                    }
+                }
+            }
+            long stamp = fileStamp;
+            for (int j = closure.nextSetBit(0); j >= 0; j = closure.nextSetBit(j + 1)) {
+                stamp = combine(stamp, ownStamps[j]);
+            }
+            closure.clear();
+            myRuleStamps.put(rules.get(i), stamp);
+        }
+    }
+
+    private static long combineText(long h, @Nonnull PsiElement element) {
+        return combine(combine(h, element.getTextLength()), element.getText().hashCode());
+    }
+
+    private static long combine(long h, long value) {
+        return mix(h * 0x9e3779b97f4a7c15L + value);
+    }
+
+    /**
+     * Returns the contents of the rule built by the previous helper if none of the rule dependencies has changed.
+     * Rules to the left are found by their usages in other rules, so left rules are always rebuilt.
+     */
+    @Nullable
+    private Map<PsiElement, Cardinality> reuseMembers(@Nonnull BnfRule rule) {
+        if (myPrevious == null || Rule.isLeft(rule) || !myRuleStamps.get(rule).equals(myPrevious.myRuleStamps.get(rule))) {
+            return null;
+        }
+        int slot = myPrevious.myRuleSlots.getInt(rule) - 1;
+        if (slot < 0) {
+            return null;
+        }
+        for (int id : myPrevious.myContentIds[slot]) {
+            PsiElement element = myPrevious.myElements.get(id);
+            IElementType type = PsiUtilCore.getElementType(element);
+            if (type != EXTERNAL_TYPE && type != MARKER_TYPE && !element.isValid()) {
+                return null;
+            }
+        }
+        PsiElement[] collapse = myPrevious.myContentCollapse[slot];
+        if (collapse != null) {
+            myRulesCollapseMap.putValues(rule, Arrays.asList(collapse));
+        }
+        return myPrevious.getStored(rule);
+    }
+
     private void buildContentsMap() {
         List<BnfRule> rules = topoSort(myFile.getRules(), this);
         Set<Object> visited = new LinkedHashSet<>();
@@ -306,11 +431,63 @@ public class RuleGraphHelper {
         }
     }
 
+    /**
+     * Moves the rule contents built by {@link #buildContentsMap()} to parallel arrays of interned element ids
+     * and cardinality ordinals. Maps are then created on demand by {@link #getFor(BnfRule)}.
+     */
+    @SuppressWarnings("unchecked")
+    private void compactContents() {
+        int size = myRuleContentsMap.size();
+        myContentIds = new int[size][];
+        myContentCards = new byte[size][];
+        myContentViews = new Map[size];
+        myContentIndex = new int[size][];
+        myContentCollapse = new PsiElement[size][];
+        ObjectIntMap<PsiElement> elementIds = ObjectMaps.newObjectIntHashMap();
+        int slot = 0;
+        for (Map.Entry<BnfRule, Map<PsiElement, Cardinality>> e : myRuleContentsMap.entrySet()) {
+            Map<PsiElement, Cardinality> map = e.getValue();
+            int[] ids = new int[map.size()];
+            byte[] cards = new byte[map.size()];
+            int i = 0;
+            for (Map.Entry<PsiElement, Cardinality> entry : map.entrySet()) {
+                int id = elementIds.getInt(entry.getKey());
+                if (id == 0) {
+                    myElements.add(entry.getKey());
+                    elementIds.putInt(entry.getKey(), id = myElements.size());
+                }
+                ids[i] = id - 1;
+                cards[i++] = (byte)entry.getValue().ordinal();
+            }
+            myContentIds[slot] = ids;
+            myContentCards[slot] = cards;
+            Collection<PsiElement> collapse = myRulesCollapseMap.get(e.getKey());
+            myContentCollapse[slot] = collapse.isEmpty() ? null : collapse.toArray(PsiElement.EMPTY_ARRAY);
+            myRuleSlots.putInt(e.getKey(), ++slot);
+        }
+        myElementHashes = new int[myElements.size()];
+        for (int id = 0; id < myElementHashes.length; id++) {
+            myElementHashes[id] = CARDINALITY_HASHING_STRATEGY.hashCode(myElements.get(id));
+        }
+        // built here rather than on first use: the helper is shared between threads
+        for (int i = 0; i < size; i++) {
+            if (myContentIds[i].length > LINEAR_LOOKUP_LIMIT) {
+                myContentIndex[i] = buildIndex(myContentIds[i]);
+            }
+        }
+        myRuleContentsMap = null;
+        myPrevious = null;
+    }
+
     private Map<PsiElement, Cardinality> collectMembers(@Nonnull BnfRule rule, Set<Object> visited) {
-        Map<PsiElement, Cardinality> result = myRuleContentsMap.get(rule);
+        Map<PsiElement, Cardinality> result = myRuleContentsMap != null ? myRuleContentsMap.get(rule) : getStored(rule);
         if (result != null) {
             return result;
         }
+        if (myRuleContentsMap != null && (result = reuseMembers(rule)) != null) {
+            myRuleContentsMap.put(rule, result);
+            return result;
+        }
         if (Rule.isExternal(rule)) {
             result = psiMap(newExternalPsi(rule.getName()), REQUIRED);
         }
@@ -321,7 +498,7 @@ public class RuleGraphHelper {
             return result;
         }
         result.remove(NOT_EMPTY_MARKER); // todo private rules should retain this
-        myRuleContentsMap.put(rule, result);
+        (myRuleContentsMap != null ? myRuleContentsMap : myLateContents).put(rule, result);
         return result;
     }
 
@@ -383,10 +560,146 @@ public class RuleGraphHelper {
 
     @Nonnull
     public Map<PsiElement, Cardinality> getFor(BnfRule rule) {
-        Map<PsiElement, Cardinality> map = myRuleContentsMap.get(rule); // null for duplicate
+        Map<PsiElement, Cardinality> map = getStored(rule); // null for duplicate
         return map == null ? Collections.emptyMap() : map;
     }
 
+    public boolean isEmptyFor(BnfRule rule) {
+        int slot = myRuleSlots.getInt(rule) - 1;
+        return slot < 0 ? getFor(rule).isEmpty() : myContentIds[slot].length == 0;
+    }
+
+    @Nullable
+    public Cardinality getCardinality(BnfRule rule, PsiElement element) {
+        int slot = myRuleSlots.getInt(rule) - 1;
+        if (slot < 0) {
+            return getFor(rule).get(element);
+        }
+        int index = indexOf(slot, element);
+        return index < 0 ? null : CARDINALITIES[myContentCards[slot][index]];
+    }
+
+    @Nullable
+    private Map<PsiElement, Cardinality> getStored(BnfRule rule) {
+        int slot = myRuleSlots.getInt(rule) - 1;
+        if (slot < 0) {
+            return myLateContents.get(rule);
+        }
+        Map<PsiElement, Cardinality> view = myContentViews[slot];
+        if (view == null) {
+            myContentViews[slot] = view = new ContentsMap(slot);
+        }
+        return view;
+    }
+
+    /**
+     * Returns the position of the element in the contents of the slot or -1.
+     * Short contents are scanned, longer ones are looked up in a hash table built by {@link #compactContents()}.
+     */
+    private int indexOf(int slot, Object element) {
+        if (!(element instanceof PsiElement psiElement)) {
+            return -1;
+        }
+        int[] ids = myContentIds[slot];
+        if (ids.length <= LINEAR_LOOKUP_LIMIT) {
+            for (int i = 0; i < ids.length; i++) {
+                if (CARDINALITY_HASHING_STRATEGY.equals(myElements.get(ids[i]), psiElement)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int[] table = myContentIndex[slot];
+        int hash = CARDINALITY_HASHING_STRATEGY.hashCode(psiElement);
+        int mask = table.length - 1;
+        for (int i = (hash ^ hash >>> 16) & mask; table[i] != 0; i = i + 1 & mask) {
+            int index = table[i] - 1;
+            int id = ids[index];
+            if (myElementHashes[id] == hash && CARDINALITY_HASHING_STRATEGY.equals(myElements.get(id), psiElement)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int[] buildIndex(int[] ids) {
+        int[] table = new int[Integer.highestOneBit(ids.length) << 2]; // load factor below 1/2
+        int mask = table.length - 1;
+        for (int index = 0; index < ids.length; index++) {
+            int hash = myElementHashes[ids[index]];
+            int i = (hash ^ hash >>> 16) & mask;
+            while (table[i] != 0) {
+                i = i + 1 & mask;
+            }
+            table[i] = index + 1;
+        }
+        return table;
+    }
+
+    /**
+     * Read-only map over the compacted contents of a rule, iterates in the order the contents were collected.
+     */
+    private final class ContentsMap extends AbstractMap<PsiElement, Cardinality> {
+        private final int mySlot;
+        private final int[] myIds;
+        private final byte[] myCards;
+
+        ContentsMap(int slot) {
+            mySlot = slot;
+            myIds = myContentIds[slot];
+            myCards = myContentCards[slot];
+        }
+
+        @Override
+        public int size() {
+            return myIds.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(mySlot, key) >= 0;
+        }
+
+        @Override
+        public Cardinality get(Object key) {
+            int index = indexOf(mySlot, key);
+            return index < 0 ? null : CARDINALITIES[myCards[index]];
+        }
+
+        @Nonnull
+        @Override
+        public Set<Entry<PsiElement, Cardinality>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return myIds.length;
+                }
+
+                @Nonnull
+                @Override
+                public Iterator<Entry<PsiElement, Cardinality>> iterator() {
+                    return new Iterator<>() {
+                        int myIndex;
+
+                        @Override
+                        public boolean hasNext() {
+                            return myIndex < myIds.length;
+                        }
+
+                        @Override
+                        public Entry<PsiElement, Cardinality> next() {
+                            if (myIndex >= myIds.length) {
+                                throw new NoSuchElementException();
+                            }
+                            int i = myIndex++;
+                            return new SimpleImmutableEntry<>(myElements.get(myIds[i]), CARDINALITIES[myCards[i]]);
+                        }
+                    };
+                }
+            };
+        }
+    }
+
     Map<PsiElement, Cardinality> collectMembers(BnfRule rule, BnfExpression tree, Set<Object> visited) {
         if (tree instanceof BnfPredicate) {
             return Collections.emptyMap();
@@ -22,8 +22,10 @@ import consulo.application.util.CachedValuesManager;
 import consulo.document.util.TextRange;
 import consulo.language.file.FileViewProvider;
 import consulo.language.impl.psi.PsiFileBase;
+import consulo.language.psi.PsiElement;
 import consulo.language.psi.util.PsiTreeUtil;
 import consulo.util.collection.ContainerUtil;
+import consulo.util.lang.Pair;
 import consulo.util.lang.StringUtil;
 import consulo.virtualFileSystem.fileType.FileType;
 import org.intellij.grammar.BnfFileType;
@@ -35,6 +37,7 @@ import org.intellij.grammar.psi.*;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -42,23 +45,15 @@ import java.util.regex.Pattern;
  * @since 2011-07-13
  */
 public class BnfFileImpl extends PsiFileBase implements BnfFile {
-    private final CachedValue<Map<String, BnfRule>> myRules;
-    private final CachedValue<List<BnfAttrs>> myGlobalAttributes;
-    private final CachedValue<Map<String, List<AttributeInfo>>> myAttributeValues;
+    private static final AttributeInfo NO_ATTRIBUTE = new AttributeInfo(0, 0, false, null, null);
+
+    private final CachedValue<FileModel> myModel;
 
     public BnfFileImpl(FileViewProvider fileViewProvider) {
         super(fileViewProvider, BnfLanguage.INSTANCE);
-        myRules = CachedValuesManager.getManager(getProject()).createCachedValue(
-            () -> CachedValueProvider.Result.create(calcRules(), BnfFileImpl.this),
-            false
-        );
-        myGlobalAttributes = CachedValuesManager.getManager(getProject()).createCachedValue(
-            () -> CachedValueProvider.Result.create(calcAttributes(), BnfFileImpl.this),
-            false
-        );
         //noinspection RequiredXAction
-        myAttributeValues = CachedValuesManager.getManager(getProject()).createCachedValue(
-            () -> CachedValueProvider.Result.create(calcAttributeValues(), BnfFileImpl.this),
+        myModel = CachedValuesManager.getManager(getProject()).createCachedValue(
+            () -> CachedValueProvider.Result.create(calcModel(), BnfFileImpl.this),
             false
         );
     }
@@ -66,19 +61,19 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
     @Nonnull
     @Override
     public List<BnfRule> getRules() {
-        return new ArrayList<>(myRules.getValue().values());
+        return new ArrayList<>(myModel.getValue().rules.values());
     }
 
     @Nullable
     @Override
     public BnfRule getRule(@Nullable String ruleName) {
-        return ruleName == null ? null : myRules.getValue().get(ruleName);
+        return ruleName == null ? null : myModel.getValue().rules.get(ruleName);
     }
 
     @Nonnull
     @Override
     public List<BnfAttrs> getAttributes() {
-        return myGlobalAttributes.getValue();
+        return myModel.getValue().attributes;
     }
 
     @Override
@@ -120,10 +115,39 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
         @Nonnull KnownAttribute<T> knownAttribute,
         @Nullable String match
     ) {
-        List<AttributeInfo> list = myAttributeValues.getValue().get(knownAttribute.getName());
-        if (list == null) {
+        FileModel model = myModel.getValue();
+        AttributeTable table = model.attributeValues.get(knownAttribute.getName());
+        if (table == null) {
             return null;
         }
+        Integer ruleIndex = rule == null ? Integer.valueOf(model.ruleIndex.size()) : model.ruleIndex.get(rule);
+        if (ruleIndex == null) {
+            // a rule with the duplicate name
+            return resolveAttributeInfo(table.infos, rule, match);
+        }
+        AttributeInfo result;
+        if (match == null) {
+            result = table.resolved[ruleIndex];
+            if (result == null) {
+                result = resolveAttributeInfo(table.infos, rule, null);
+                table.resolved[ruleIndex] = result = result == null ? NO_ATTRIBUTE : result;
+            }
+        }
+        else {
+            result = table.resolvedMatches.computeIfAbsent(
+                Pair.create(ruleIndex, match),
+                o -> {
+                    AttributeInfo info = resolveAttributeInfo(table.infos, rule, match);
+                    return info == null ? NO_ATTRIBUTE : info;
+                }
+            );
+        }
+        return result == NO_ATTRIBUTE ? null : result;
+    }
+
+    @Nullable
+    @RequiredReadAction
+    private AttributeInfo resolveAttributeInfo(@Nonnull List<AttributeInfo> list, @Nullable BnfRule rule, @Nullable String match) {
         BnfAttrs globalAttrs = rule == null ? ContainerUtil.getFirstItem(getAttributes()) : null;
         int offset = rule == null
             ? globalAttrs == null
@@ -168,24 +192,35 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
         return "BnfFile:" + getName();
     }
 
-    private Map<String, BnfRule> calcRules() {
-        Map<String, BnfRule> result = new LinkedHashMap<>();
-        for (BnfRule o : GrammarUtil.bnfTraverser(this).filter(BnfRule.class)) {
-            if (!result.containsKey(o.getName())) {
-                result.put(o.getName(), o);
+    /**
+     * Collects rules, attributes and attribute values in a single pass over the file.
+     */
+    @RequiredReadAction
+    private FileModel calcModel() {
+        FileModel model = new FileModel();
+        for (PsiElement o : GrammarUtil.bnfTraverser(this).filter(e -> e instanceof BnfRule || e instanceof BnfAttrs)) {
+            if (o instanceof BnfRule rule) {
+                if (!model.rules.containsKey(rule.getName())) {
+                    model.rules.put(rule.getName(), rule);
+                    model.ruleIndex.put(rule, model.ruleIndex.size());
+                }
+            }
+            else {
+                model.attributes.add((BnfAttrs)o);
             }
         }
-        return result;
-    }
-
-    private List<BnfAttrs> calcAttributes() {
-        return GrammarUtil.bnfTraverser(this).filter(BnfAttrs.class).toList();
+        Map<String, List<AttributeInfo>> values = calcAttributeValues(model.attributes);
+        for (Map.Entry<String, List<AttributeInfo>> e : values.entrySet()) {
+            // the last slot is for the global value
+            model.attributeValues.put(e.getKey(), new AttributeTable(e.getValue(), model.ruleIndex.size() + 1));
+        }
+        return model;
     }
 
     @RequiredReadAction
-    private Map<String, List<AttributeInfo>> calcAttributeValues() {
+    private static Map<String, List<AttributeInfo>> calcAttributeValues(List<BnfAttrs> allAttrs) {
         Map<String, List<AttributeInfo>> result = new HashMap<>();
-        for (BnfAttrs attrs : GrammarUtil.bnfTraverser(this).filter(BnfAttrs.class)) {
+        for (BnfAttrs attrs : allAttrs) {
             boolean isRule = attrs.getParent() instanceof BnfRule;
             TextRange baseRange = attrs.getTextRange();
             List<BnfAttr> attrList = attrs.getAttrList();
@@ -220,6 +255,28 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
         return result;
     }
 
+    private static class FileModel {
+        final Map<String, BnfRule> rules = new LinkedHashMap<>();
+        final Map<BnfRule, Integer> ruleIndex = new HashMap<>();
+        final List<BnfAttrs> attributes = new ArrayList<>();
+        final Map<String, AttributeTable> attributeValues = new HashMap<>();
+    }
+
+    /**
+     * Attribute values of a single attribute sorted by offset together with the values resolved so far,
+     * so that attribute patterns are matched once per rule.
+     */
+    private static class AttributeTable {
+        final List<AttributeInfo> infos;
+        final AttributeInfo[] resolved; // rule index -> resolved value
+        final Map<Pair<Integer, String>, AttributeInfo> resolvedMatches = new ConcurrentHashMap<>();
+
+        AttributeTable(List<AttributeInfo> infos, int size) {
+            this.infos = infos;
+            this.resolved = new AttributeInfo[size];
+        }
+    }
+
     private static class AttributeInfo implements Comparable<AttributeInfo> {
         final int attrOffset;
         final int offset;
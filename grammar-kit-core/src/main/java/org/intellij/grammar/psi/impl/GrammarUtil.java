@@ -4,6 +4,7 @@
 
 package org.intellij.grammar.psi.impl;
 
+import consulo.application.util.CachedValueProvider;
 import consulo.application.util.function.Processor;
 import consulo.language.Language;
 import consulo.language.ast.IElementType;
@@ -11,6 +12,7 @@ import consulo.language.impl.parser.GeneratedParserUtilBase;
 import consulo.language.impl.psi.LeafPsiElement;
 import consulo.language.psi.PsiElement;
 import consulo.language.psi.SyntaxTraverser;
+import consulo.language.psi.util.LanguageCachedValueUtil;
 import consulo.language.psi.util.PsiTreeUtil;
 import consulo.util.collection.SmartList;
 import consulo.util.lang.StringUtil;
@@ -26,6 +28,7 @@ import org.jetbrains.annotations.Contract;
 import jakarta.annotation.Nullable;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 import static consulo.language.psi.SyntaxTraverser.psiTraverser;
 import static org.intellij.grammar.generator.ParserGeneratorUtil.*;
@@ -82,6 +85,27 @@ public class GrammarUtil {
         }
     }
 
+    /**
+     * Returns a hash of the expression structure consistent with {@link #equalsElement(BnfExpression, BnfExpression)}.
+     * The hash is cached per expression and reuses the hashes of sub-expressions.
+     */
+    public static int structuralHash(@Nonnull BnfExpression e) {
+        return LanguageCachedValueUtil.getCachedValue(e, () -> CachedValueProvider.Result.create(calcStructuralHash(e), e));
+    }
+
+    private static int calcStructuralHash(@Nonnull BnfExpression e) {
+        int hash = Objects.hashCode(ParserGeneratorUtil.getEffectiveType(e));
+        if (isOneTokenExpression(e)) {
+            return hash * 31 + e.getText().hashCode();
+        }
+        for (PsiElement c = e.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c instanceof BnfExpression child) {
+                hash = hash * 31 + structuralHash(child);
+            }
+        }
+        return hash;
+    }
+
     public static boolean isInAttributesReference(@Nullable PsiElement element) {
         return PsiTreeUtil.getParentOfType(element, BnfRule.class, BnfAttrs.class) instanceof BnfAttrs;
     }
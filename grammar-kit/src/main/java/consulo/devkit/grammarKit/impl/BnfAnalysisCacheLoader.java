@@ -0,0 +1,46 @@
+package consulo.devkit.grammarKit.impl;
+
+import consulo.annotation.component.ComponentScope;
+import consulo.annotation.component.TopicImpl;
+import consulo.application.ReadAction;
+import consulo.application.util.concurrent.AppExecutorUtil;
+import consulo.fileEditor.FileEditorManager;
+import consulo.fileEditor.event.FileEditorManagerListener;
+import consulo.language.psi.PsiFile;
+import consulo.language.psi.PsiManager;
+import consulo.project.Project;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import jakarta.inject.Inject;
+import org.intellij.grammar.BnfFileType;
+import org.intellij.grammar.analysis.BnfAnalysisCache;
+import org.intellij.grammar.psi.BnfFile;
+
+/**
+ * Starts reading the stored analysis of a grammar as soon as it is opened,
+ * so the first highlighting pass can take it instead of analyzing the grammar.
+ */
+@TopicImpl(ComponentScope.PROJECT)
+public class BnfAnalysisCacheLoader implements FileEditorManagerListener {
+    private final Project myProject;
+
+    @Inject
+    public BnfAnalysisCacheLoader(Project project) {
+        myProject = project;
+    }
+
+    @Override
+    public void fileOpened(@Nonnull FileEditorManager source, @Nonnull VirtualFile file) {
+        if (file.getFileType() != BnfFileType.INSTANCE) {
+            return;
+        }
+        ReadAction.nonBlocking(() -> {
+                PsiFile psiFile = PsiManager.getInstance(myProject).findFile(file);
+                if (psiFile instanceof BnfFile bnfFile) {
+                    BnfAnalysisCache.preload(bnfFile);
+                }
+            })
+            .expireWith(myProject)
+            .submit(AppExecutorUtil.getAppExecutorService());
+    }
+}
@@ -0,0 +1,38 @@
+package consulo.devkit.grammarKit.impl;
+
+import consulo.annotation.component.ComponentScope;
+import consulo.annotation.component.TopicImpl;
+import consulo.document.Document;
+import consulo.document.FileDocumentManager;
+import consulo.document.event.FileDocumentManagerListener;
+import consulo.language.psi.PsiDocumentManager;
+import consulo.language.psi.PsiFile;
+import consulo.project.Project;
+import consulo.project.ProjectManager;
+import consulo.virtualFileSystem.VirtualFile;
+import jakarta.annotation.Nonnull;
+import org.intellij.grammar.BnfFileType;
+import org.intellij.grammar.analysis.BnfAnalysisCache;
+import org.intellij.grammar.psi.BnfFile;
+
+/**
+ * Stores the analysis of a grammar when it is saved, so an analysis computed for unsaved text is not lost.
+ */
+@TopicImpl(ComponentScope.APPLICATION)
+public class BnfAnalysisCacheSaver implements FileDocumentManagerListener {
+    @Override
+    public void beforeDocumentSaving(@Nonnull Document document) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        if (file == null || file.getFileType() != BnfFileType.INSTANCE) {
+            return;
+        }
+        for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+            PsiDocumentManager documentManager = PsiDocumentManager.getInstance(project);
+            PsiFile psiFile = documentManager.getCachedPsiFile(document);
+            if (psiFile instanceof BnfFile bnfFile && documentManager.isCommitted(document)) {
+                BnfAnalysisCache.beforeDocumentSaving(bnfFile);
+                return;
+            }
+        }
+    }
+}
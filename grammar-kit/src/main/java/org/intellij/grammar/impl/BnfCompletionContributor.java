@@ -19,6 +19,7 @@ package org.intellij.grammar.impl;
 import com.intellij.java.language.psi.util.PsiUtil;
 import consulo.annotation.access.RequiredReadAction;
 import consulo.annotation.component.ExtensionImpl;
+import consulo.application.util.CachedValueProvider;
 import consulo.document.util.TextRange;
 import consulo.language.Language;
 import consulo.language.ast.ASTNode;
@@ -33,6 +34,7 @@ import consulo.language.impl.parser.GeneratedParserUtilBase;
 import consulo.language.pattern.PlatformPatterns;
 import consulo.language.pattern.PsiElementPattern;
 import consulo.language.psi.*;
+import consulo.language.psi.util.LanguageCachedValueUtil;
 import consulo.language.psi.util.PsiTreeUtil;
 import consulo.util.lang.ObjectUtil;
 import consulo.util.lang.StringUtil;
@@ -48,6 +50,8 @@ import org.jetbrains.annotations.Contract;
 import jakarta.annotation.Nullable;
 
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import static consulo.language.pattern.PlatformPatterns.psiElement;
@@ -105,21 +109,47 @@ public class BnfCompletionContributor extends CompletionContributor {
                 for (String s : explicitTokens) {
                     result.addElement(LookupElementBuilder.create(s));
                 }
-                for (BnfRule rule : file.getRules()) {
-                    for (BnfReferenceOrToken element : SyntaxTraverser.psiTraverser(rule.getExpression())
-                        .filter(BnfReferenceOrToken.class)) {
-                        if (element == positionRefOrToken) {
-                            continue;
-                        }
-                        if (element.resolveRule() == null) {
-                            result.addElement(LookupElementBuilder.create(element.getText()));
-                        }
+                String positionText = positionRefOrToken == null ? null : positionRefOrToken.getText();
+                for (Map.Entry<String, Integer> entry : getImplicitTokens(file).entrySet()) {
+                    // skip the token being completed unless it is used elsewhere
+                    if (entry.getValue() == 1 && entry.getKey().equals(positionText) && isImplicitToken(positionRefOrToken)) {
+                        continue;
                     }
+                    result.addElement(LookupElementBuilder.create(entry.getKey()));
                 }
             }
         );
     }
 
+    /**
+     * Returns texts of the tokens used in rules but not declared in {@code tokens}, with the number of their usages.
+     */
+    @Nonnull
+    private static Map<String, Integer> getImplicitTokens(@Nonnull BnfFile file) {
+        return LanguageCachedValueUtil.getCachedValue(file, () -> CachedValueProvider.Result.create(calcImplicitTokens(file), file));
+    }
+
+    @Nonnull
+    @RequiredReadAction
+    private static Map<String, Integer> calcImplicitTokens(@Nonnull BnfFile file) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (BnfRule rule : file.getRules()) {
+            for (BnfReferenceOrToken element : SyntaxTraverser.psiTraverser(rule.getExpression()).filter(BnfReferenceOrToken.class)) {
+                if (element.resolveRule() == null) {
+                    result.merge(element.getText(), 1, Integer::sum);
+                }
+            }
+        }
+        return result;
+    }
+
+    @RequiredReadAction
+    private static boolean isImplicitToken(@Nonnull PsiElement element) {
+        BnfRule rule = PsiTreeUtil.getParentOfType(element, BnfRule.class);
+        return rule != null && PsiTreeUtil.isAncestor(rule.getExpression(), element, false) &&
+            ((BnfReferenceOrToken)element).resolveRule() == null;
+    }
+
     @Override
     @RequiredReadAction
     public void beforeCompletion(@Nonnull CompletionInitializationContext context) {
@@ -209,7 +239,8 @@ public class BnfCompletionContributor extends CompletionContributor {
             }
             range = new TextRange(offset, posRange.getStartOffset());
         }
-        String headText = range.substring(posFile.getText());
+        CharSequence contents = posFile.getViewProvider().getContents();
+        String headText = range.subSequence(contents).toString();
         int completionOffset = StringUtil.isEmptyOrSpaces(headText) ? 0 : headText.length();
         String text = completionOffset == 0 ? CompletionInitializationContext.DUMMY_IDENTIFIER : headText;
 
@@ -228,7 +259,7 @@ public class BnfCompletionContributor extends CompletionContributor {
         if (completionOffset != 0) {
             TextRange altRange =
                 TextRange.create(posRange.getEndOffset(), Math.min(posRange.getEndOffset() + 100, posFile.getTextLength()));
-            String tailText = altRange.substring(posFile.getText());
+            String tailText = altRange.subSequence(contents).toString();
             String text2 = text + (StringUtil.isEmptyOrSpaces(tailText) ? "a ::= " : tailText);
             PsiFile file2 = psiFileFactory.createFileFromText("a.bnf", BnfLanguage.INSTANCE, text2, true, false);
             file2.putUserData(GeneratedParserUtilBase.COMPLETION_STATE_KEY, state);
@@ -63,8 +63,8 @@ public class BnfDocumentationProvider implements LanguageDocumentationProvider {
     public String generateDoc(PsiElement element, PsiElement originalElement) {
         if (element instanceof BnfRule rule) {
             BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
-            Set<String> first = analyzer.asStrings(analyzer.calcFirst(rule));
-            Set<String> next = analyzer.asStrings(analyzer.calcNext(rule).keySet());
+            Set<String> first = analyzer.calcFirstAsStrings(rule);
+            Set<String> next = analyzer.calcNextAsStrings(rule);
 
             StringBuilder docBuilder = new StringBuilder();
             String[] firstS = first.toArray(new String[first.size()]);
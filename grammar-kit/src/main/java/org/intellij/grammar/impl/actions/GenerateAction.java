@@ -47,6 +47,7 @@ import consulo.util.io.FileUtil;
 import consulo.util.io.PathUtil;
 import consulo.util.lang.ExceptionUtil;
 import consulo.util.lang.StringUtil;
+import consulo.virtualFileSystem.LocalFileSystem;
 import consulo.virtualFileSystem.VirtualFile;
 import consulo.virtualFileSystem.util.VirtualFileUtil;
 import jakarta.annotation.Nonnull;
@@ -135,7 +136,7 @@ public class GenerateAction extends AnAction implements AnActionWithAsyncUpdate
         ProgressManager.getInstance().run(
             new Task.Backgroundable(project, "Parser Generation", true, PerformInBackgroundOption.ALWAYS_BACKGROUND) {
                 List<File> files = new ArrayList<>();
-                Set<VirtualFile> targets = new LinkedHashSet<>();
+                int skipped = 0;
                 long totalWritten = 0;
 
                 @Override
@@ -148,10 +149,11 @@ public class GenerateAction extends AnAction implements AnActionWithAsyncUpdate
                     }
                     finally {
                         String report = String.format(
-                            "%d grammars: %d files generated (%s) in %s",
+                            "%d grammars: %d files generated (%s), %d unchanged in %s",
                             bnfFiles.size(),
                             files.size(),
                             StringUtil.formatFileSize(totalWritten),
+                            skipped,
                             StringUtil.formatDuration(System.currentTimeMillis() - startTime)
                         );
                         if (bnfFiles.size() > 3) {
@@ -160,7 +162,8 @@ public class GenerateAction extends AnAction implements AnActionWithAsyncUpdate
                                 project
                             );
                         }
-                        VirtualFileUtil.markDirtyAndRefresh(true, true, true, targets.toArray(new VirtualFile[targets.size()]));
+                        // refresh only what was actually written, unchanged files keep their VFS state
+                        LocalFileSystem.getInstance().refreshIoFiles(files);
                     }
                 }
 
@@ -173,11 +176,11 @@ public class GenerateAction extends AnAction implements AnActionWithAsyncUpdate
                         if (target == null) {
                             return;
                         }
-                        targets.add(target);
                         final File genDir = new File(VirtualFileUtil.virtualToIoFile(target).getAbsolutePath());
                         try {
                             long time = System.currentTimeMillis();
                             int filesCount = files.size();
+                            int skippedCount = skipped;
                             Application.get().runReadAction(new ThrowableComputable<Boolean, Exception>() {
                                 @Override
                                 public Boolean compute() throws Exception {
@@ -187,6 +190,11 @@ public class GenerateAction extends AnAction implements AnActionWithAsyncUpdate
                                             files.add(file);
                                             return super.openOutputInner(file);
                                         }
+
+                                        @Override
+                                        protected void outputSkipped(File file) {
+                                            skipped++;
+                                        }
                                     }.generate(generateTargets);
                                     return true;
                                 }
@@ -201,7 +209,13 @@ public class GenerateAction extends AnAction implements AnActionWithAsyncUpdate
                             Notifications.Bus.notify(
                                 new Notification(
                                     BnfNotificationGroup.GRAMMAR_KIT,
-                                    String.format("%s generated (%s)", file.getName(), StringUtil.formatFileSize(written)),
+                                    String.format(
+                                        "%s generated (%d files, %s, %d unchanged)",
+                                        file.getName(),
+                                        files.size() - filesCount,
+                                        StringUtil.formatFileSize(written),
+                                        skipped - skippedCount
+                                    ),
                                     "to " + genDir + (duration == null ? "" : " in " + duration),
                                     NotificationType.INFORMATION
                                 ),
@@ -27,7 +27,7 @@ import consulo.language.editor.gutter.LineMarkerProvider;
 import consulo.language.psi.PsiElement;
 import consulo.ui.ex.action.AnAction;
 import org.intellij.grammar.BnfLanguage;
-import org.intellij.grammar.generator.RuleGraphHelper;
+import org.intellij.grammar.analysis.BnfRecursionAnalysis;
 import org.intellij.grammar.psi.BnfFile;
 import org.intellij.grammar.psi.BnfRule;
 
@@ -35,7 +35,6 @@ import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author gregsh
@@ -58,9 +57,8 @@ public class BnfRecursionLineMarkerProvider implements LineMarkerProvider {
 
             ProgressManager.checkCanceled();
 
-            RuleGraphHelper helper = RuleGraphHelper.getCached((BnfFile)rule.getContainingFile());
-            Map<PsiElement, RuleGraphHelper.Cardinality> map = helper.getFor(rule);
-            if (map.containsKey(rule)) {
+            BnfRecursionAnalysis recursionAnalysis = BnfRecursionAnalysis.getCached((BnfFile)rule.getContainingFile());
+            if (recursionAnalysis.isRecursive(rule)) {
                 result.add(new MyMarkerInfo(rule));
             }
         }
@@ -25,15 +25,14 @@ import consulo.language.editor.inspection.ProblemsHolder;
 import consulo.language.editor.rawHighlight.HighlightDisplayLevel;
 import consulo.language.psi.PsiElementVisitor;
 import consulo.localize.LocalizeValue;
+import consulo.util.collection.SmartList;
 import jakarta.annotation.Nonnull;
 import org.intellij.grammar.psi.BnfChoice;
 import org.intellij.grammar.psi.BnfExpression;
 import org.intellij.grammar.psi.BnfVisitor;
 import org.intellij.grammar.psi.impl.GrammarUtil;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Vadim Romansky
@@ -97,16 +96,18 @@ public class BnfIdenticalChoiceBranchesInspection extends LocalInspectionTool {
     }
 
     private static void checkChoice(BnfChoice choice, Set<BnfExpression> set) {
-        List<BnfExpression> list = choice.getExpressionList();
-        for (int i = 0, n = list.size(); i < n; i++) {
-            BnfExpression e1 = list.get(i);
-            for (int j = i + 1; j < n; j++) {
-                BnfExpression e2 = list.get(j);
+        // branches are compared only within a bucket of equal structural hashes
+        Map<Integer, List<BnfExpression>> buckets = new HashMap<>();
+        for (BnfExpression e1 : choice.getExpressionList()) {
+            List<BnfExpression> bucket = buckets.computeIfAbsent(GrammarUtil.structuralHash(e1), k -> new SmartList<>());
+            for (BnfExpression e2 : bucket) {
                 if (e1 != e2 && GrammarUtil.equalsElement(e1, e2)) {
                     set.add(e1);
                     set.add(e2);
+                    break;
                 }
             }
+            bucket.add(e1);
         }
     }
 }
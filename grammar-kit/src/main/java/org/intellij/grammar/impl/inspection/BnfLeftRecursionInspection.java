@@ -24,8 +24,11 @@ import consulo.language.editor.inspection.ProblemsHolder;
 import consulo.language.editor.rawHighlight.HighlightDisplayLevel;
 import consulo.language.psi.PsiElementVisitor;
 import consulo.localize.LocalizeValue;
+import consulo.util.lang.StringUtil;
 import jakarta.annotation.Nonnull;
 import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstTable;
+import org.intellij.grammar.analysis.BnfRecursionAnalysis;
 import org.intellij.grammar.generator.ExpressionGeneratorHelper;
 import org.intellij.grammar.generator.ExpressionHelper;
 import org.intellij.grammar.generator.ParserGeneratorUtil;
@@ -84,7 +87,19 @@ public class BnfLeftRecursionInspection extends LocalInspectionTool {
                 String ruleName = o.getName();
                 boolean exprParsing = ExpressionGeneratorHelper.getInfoForExpressionParsing(expressionHelper, o) != null;
 
-                if (!exprParsing && analyzer.asStrings(analyzer.calcFirst(o)).contains(ruleName)) {
+                if (exprParsing) {
+                    return null;
+                }
+                if (BnfFirstTable.getCached(file).isTabulated(o)) {
+                    BnfRecursionAnalysis recursionAnalysis = BnfRecursionAnalysis.getCached(file);
+                    if (recursionAnalysis.isLeftRecursive(o)) {
+                        String cycle = StringUtil.join(recursionAnalysis.getLeftRecursionCycle(o), BnfRule::getName, " -> ");
+                        holder.newProblem(BnfLocalize.leftRecursionInspectionCycleMessage(ruleName, cycle))
+                            .range(o.getId())
+                            .create();
+                    }
+                }
+                else if (analyzer.calcFirstAsStrings(o).contains(ruleName)) {
                     holder.newProblem(BnfLocalize.leftRecursionInspectionMessage(ruleName))
                         .range(o.getId())
                         .create();
@@ -24,17 +24,15 @@ import consulo.language.editor.inspection.LocalInspectionToolSession;
 import consulo.language.editor.inspection.ProblemsHolder;
 import consulo.language.editor.rawHighlight.HighlightDisplayLevel;
 import consulo.language.psi.PsiElementVisitor;
-import consulo.language.psi.PsiReference;
 import consulo.localize.LocalizeValue;
-import consulo.util.collection.JBIterable;
 import consulo.util.lang.StringUtil;
 import jakarta.annotation.Nonnull;
+import org.intellij.grammar.analysis.BnfReferenceGraph;
 import org.intellij.grammar.generator.ParserGeneratorUtil;
-import org.intellij.grammar.psi.BnfExternalExpression;
+import org.intellij.grammar.psi.BnfFile;
+import org.intellij.grammar.psi.BnfReferenceOrToken;
 import org.intellij.grammar.psi.BnfRule;
 import org.intellij.grammar.psi.BnfVisitor;
-import org.intellij.grammar.psi.impl.BnfRefOrTokenImpl;
-import org.intellij.grammar.psi.impl.GrammarUtil;
 
 /**
  * @author Vadim Romansky
@@ -79,14 +77,10 @@ public class BnfSuspiciousTokenInspection extends LocalInspectionTool {
             @RequiredReadAction
             public Void visitRule(@Nonnull BnfRule o) {
                 if (ParserGeneratorUtil.Rule.isExternal(o)) return null;
-                JBIterable<BnfRefOrTokenImpl> tokens = GrammarUtil.bnfTraverser(o.getExpression())
-                    .expand(s -> !(s instanceof BnfExternalExpression))
-                    .filter(BnfRefOrTokenImpl.class);
-                for (BnfRefOrTokenImpl token : tokens) {
-                    PsiReference reference = token.getReference();
-                    Object resolve = reference == null ? null : reference.resolve();
+                BnfReferenceGraph graph = BnfReferenceGraph.getCached((BnfFile)o.getContainingFile());
+                for (BnfReferenceOrToken token : graph.getUnresolvedReferences(o)) {
                     String text = token.getText();
-                    if (resolve == null && !tokens.contains(text) && isTokenTextSuspicious(text)) {
+                    if (isTokenTextSuspicious(text)) {
                         holder.newProblem(BnfLocalize.suspiciousTokenInspectionMessage(text))
                             .range(token)
                             .withFix(new CreateRuleFromTokenFix(text))
@@ -24,32 +24,21 @@ import consulo.language.editor.inspection.LocalInspectionToolSession;
 import consulo.language.editor.inspection.ProblemsHolder;
 import consulo.language.editor.inspection.SuppressionUtil;
 import consulo.language.editor.rawHighlight.HighlightDisplayLevel;
-import consulo.language.psi.PsiElement;
 import consulo.language.psi.PsiElementVisitor;
 import consulo.language.psi.PsiFile;
-import consulo.language.psi.PsiReference;
 import consulo.localize.LocalizeValue;
-import consulo.util.collection.ContainerUtil;
 import consulo.util.collection.JBIterable;
 import jakarta.annotation.Nonnull;
-import jakarta.annotation.Nullable;
-import org.intellij.grammar.KnownAttribute;
+import org.intellij.grammar.analysis.BnfReferenceGraph;
 import org.intellij.grammar.generator.ParserGeneratorUtil;
 import org.intellij.grammar.psi.*;
-import org.intellij.grammar.psi.impl.BnfReferenceImpl;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.function.Predicate;
 
-import static consulo.util.lang.function.Condition.NOT_NULL;
 import static org.intellij.grammar.KnownAttribute.RECOVER_WHILE;
 import static org.intellij.grammar.KnownAttribute.getCompatibleAttribute;
-import static org.intellij.grammar.generator.ParserGeneratorUtil.findAttribute;
-import static org.intellij.grammar.psi.impl.GrammarUtil.bnfTraverser;
-import static org.intellij.grammar.psi.impl.GrammarUtil.bnfTraverserNoAttrs;
 
 /**
  * @author gregsh
@@ -109,62 +98,32 @@ public class BnfUnusedRuleInspection extends LocalInspectionTool {
             return;
         }
 
-        //noinspection LimitedScopeInnerClass,EmptyClass
-        abstract class Cond<T> extends JBIterable.Stateful<Cond> implements Predicate<T> {
-        }
-
-        Set<BnfRule> inExpr = new HashSet<>();
-        Set<BnfRule> inParsing = new HashSet<>();
+        BnfReferenceGraph graph = BnfReferenceGraph.getCached(myFile);
         Set<BnfRule> inSuppressed = new HashSet<>();
-        Map<BnfRule, String> inAttrs = new HashMap<>();
-
-        bnfTraverserNoAttrs(myFile).traverse().map(BnfUnusedRuleInspection::resolveRule).filter(NOT_NULL).addAllTo(inExpr);
-
         rules.filter(r -> SuppressionUtil.inspectionResultSuppressed(r, this)).addAllTo(inSuppressed);
 
-        inParsing.add(rules.first()); // add root rule
-        for (int size = 0, prev = -1; size != prev; prev = size, size = inParsing.size()) {
-            bnfTraverserNoAttrs(myFile).expand(new Cond<>() {
-                @Override
-                public boolean test(PsiElement element) {
-                    if (element instanceof BnfRule rule) {
-                        // add recovery rules to calculation
-                        BnfAttr recoverAttr = findAttribute(myFile.getVersion(), rule, KnownAttribute.RECOVER_WHILE);
-                        test(recoverAttr == null ? null : recoverAttr.getExpression());
-                        return inParsing.contains(rule) || inSuppressed.contains(rule);
-                    }
-                    else if (element instanceof BnfReferenceOrToken referenceOrToken) {
-                        ContainerUtil.addIfNotNull(inParsing, referenceOrToken.resolveRule());
-                        return false;
-                    }
-                    return true;
-                }
-            }).traverse().size();
-        }
-
-        for (BnfAttr attr : bnfTraverser(myFile).filter(BnfAttr.class)) {
-            BnfRule target = resolveRule(attr.getExpression());
-            if (target != null) {
-                inAttrs.put(target, attr.getName());
-            }
-        }
+        // root rule and recovery rules are reachable, suppressed rules are considered reachable for their content
+        Set<BnfRule> roots = new LinkedHashSet<>();
+        roots.add(rules.first());
+        roots.addAll(graph.getRecoveryRules());
+        Set<BnfRule> inParsing = graph.getReachableRules(roots, inSuppressed);
 
         for (BnfRule r : rules.skip(1).filter(o -> !inSuppressed.contains(o))) {
             LocalizeValue message = LocalizeValue.empty();
             if (ParserGeneratorUtil.Rule.isFake(r)) {
-                if (inExpr.contains(r)) {
+                if (graph.isReferenced(r)) {
                     message = BnfLocalize.unusedRuleInspectionMessageReachableFakeRule();
                 }
-                else if (!inAttrs.containsKey(r)) {
+                else if (graph.getReferencingAttribute(r) == null) {
                     message = BnfLocalize.unusedRuleInspectionMessageUnusedFakeRule();
                 }
             }
-            else if (getCompatibleAttribute(inAttrs.get(r)) == RECOVER_WHILE) {
+            else if (getCompatibleAttribute(graph.getReferencingAttribute(r)) == RECOVER_WHILE) {
                 if (!ParserGeneratorUtil.Rule.isPrivate(r)) {
                     message = BnfLocalize.unusedRuleInspectionMessageNonPrivateRecoveryRule();
                 }
             }
-            else if (!inExpr.contains(r)) {
+            else if (!graph.isReferenced(r)) {
                 message = BnfLocalize.unusedRuleInspectionMessageUnusedRule();
             }
             else if (!inParsing.contains(r)) {
@@ -177,15 +136,4 @@ public class BnfUnusedRuleInspection extends LocalInspectionTool {
             }
         }
     }
-
-    @Nullable
-    @RequiredReadAction
-    private static BnfRule resolveRule(@Nullable PsiElement o) {
-        if (!(o instanceof BnfReferenceOrToken || o instanceof BnfStringLiteralExpression)) {
-            return null;
-        }
-        PsiReference reference = ContainerUtil.findInstance(o.getReferences(), BnfReferenceImpl.class);
-        PsiElement target = reference != null ? reference.resolve() : null;
-        return target instanceof BnfRule rule ? rule : null;
-    }
-}
\ No newline at end of file
+}
@@ -17,6 +17,9 @@
 package org.intellij.grammar.impl.livePreview;
 
 import consulo.annotation.access.RequiredReadAction;
+import consulo.application.ReadAction;
+import consulo.application.progress.ProgressManager;
+import consulo.application.util.concurrent.AppExecutorUtil;
 import consulo.codeEditor.Editor;
 import consulo.codeEditor.EditorFactory;
 import consulo.component.ProcessCanceledException;
@@ -36,11 +39,11 @@ import consulo.language.parser.ParserDefinition;
 import consulo.language.parser.PsiBuilder;
 import consulo.language.parser.PsiBuilderFactory;
 import consulo.language.parser.PsiParser;
-import consulo.language.psi.PsiDocumentManager;
 import consulo.language.psi.PsiFile;
 import consulo.language.psi.PsiManager;
 import consulo.language.version.LanguageVersionUtil;
 import consulo.project.Project;
+import consulo.ui.annotation.RequiredUIAccess;
 import consulo.ui.ex.awt.util.Alarm;
 import consulo.ui.ex.awt.util.SingleAlarm;
 import consulo.util.dataholder.NotNullLazyKey;
@@ -48,14 +51,14 @@ import consulo.util.lang.function.PairProcessor;
 import consulo.virtualFileSystem.VirtualFile;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
+import org.intellij.grammar.generator.ExpressionHelper;
 import org.intellij.grammar.psi.BnfExpression;
 import org.intellij.grammar.psi.BnfFile;
-import org.intellij.grammar.psi.BnfRule;
 
 import javax.swing.*;
-import java.util.Collection;
-import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /**
@@ -112,13 +115,13 @@ public class LivePreviewHelper {
         //LanguageParserDefinitions.INSTANCE.removeExplicitExtension(language, LanguageParserDefinitions.INSTANCE.forLanguage(language));
     }
 
-    private static final NotNullLazyKey<SingleAlarm, Project>
-        LIVE_PREVIEW_ALARM =
-        NotNullLazyKey.create("LIVE_PREVIEW_ALARM", new Function<Project, SingleAlarm>() {
+    private static final NotNullLazyKey<PreviewUpdater, Project>
+        LIVE_PREVIEW_UPDATER =
+        NotNullLazyKey.create("LIVE_PREVIEW_UPDATER", new Function<Project, PreviewUpdater>() {
             @Nonnull
             @Override
-            public SingleAlarm apply(final Project project) {
-                return new SingleAlarm(() -> reparseAllLivePreviews(project), 300, Alarm.ThreadToUse.SWING_THREAD, project);
+            public PreviewUpdater apply(final Project project) {
+                return new PreviewUpdater(project);
             }
         });
 
@@ -134,7 +137,7 @@ public class LivePreviewHelper {
                     VirtualFile file = fileManager.getFile(document);
                     PsiFile psiFile = file == null ? null : psiManager.findFile(file);
                     if (psiFile instanceof BnfFile) {
-                        LIVE_PREVIEW_ALARM.getValue(project).cancelAndRequest();
+                        LIVE_PREVIEW_UPDATER.getValue(project).request(file);
                     }
                 }
             },
@@ -162,23 +165,102 @@ public class LivePreviewHelper {
         //});
     }
 
-    private static void reparseAllLivePreviews(@Nonnull Project project) {
-        if (!project.isOpen()) {
-            return;
+    /**
+     * Reparses previews of changed grammars.
+     * <p/>
+     * Previews are collected and the grammar caches they need are computed in a non-blocking background read action,
+     * once per grammar however many previews it has. The action waits for the grammars to be committed,
+     * is restarted whenever a write action comes and is dropped by the next grammar change.
+     * Previews of all changed grammars are then reparsed in a single UI thread call,
+     * and their new trees are built by another non-blocking read action.
+     * <p/>
+     * {@link FileContentUtil#reparseFiles} only drops the old PSI, so a preview tree accessed between the two actions
+     * is still built by the caller. The trees are not swapped in as a whole.
+     */
+    private static class PreviewUpdater {
+        private final Project myProject;
+        private final SingleAlarm myAlarm;
+        private final Set<VirtualFile> myChangedGrammars = ConcurrentHashMap.newKeySet();
+        private final AtomicLong myRequestCount = new AtomicLong();
+
+        PreviewUpdater(@Nonnull Project project) {
+            myProject = project;
+            myAlarm = new SingleAlarm(this::update, 300, Alarm.ThreadToUse.POOLED_THREAD, project);
         }
-        PsiDocumentManager.getInstance(project).commitAllDocuments();
-        Collection<VirtualFile> files = new LinkedHashSet<>();
-        FileEditorManager fileEditorManager = FileEditorManager.getInstance(project);
-        PsiManager psiManager = PsiManager.getInstance(project);
-        for (VirtualFile file : fileEditorManager.getOpenFiles()) {
-            PsiFile psiFile = psiManager.findFile(file);
-            Language language = psiFile == null ? null : psiFile.getLanguage();
-            if (!(language instanceof LivePreviewLanguage)) {
-                continue;
+
+        @RequiredUIAccess
+        void request(@Nonnull VirtualFile grammarFile) {
+            myChangedGrammars.add(grammarFile);
+            myRequestCount.incrementAndGet();
+            myAlarm.cancelAndRequest();
+        }
+
+        private void update() {
+            if (!myProject.isOpen() || myChangedGrammars.isEmpty()) {
+                return;
+            }
+            long requestCount = myRequestCount.get();
+            Set<VirtualFile> grammars = new HashSet<>(myChangedGrammars);
+            ReadAction.nonBlocking(() -> collectPreviews(grammars))
+                .withDocumentsCommitted(myProject)
+                .expireWith(myProject)
+                .coalesceBy(this)
+                .submit(AppExecutorUtil.getAppExecutorService())
+                .onSuccess(previews -> myProject.getUIAccess().give(() -> publish(requestCount, grammars, previews)));
+        }
+
+        @Nonnull
+        @RequiredReadAction
+        private List<VirtualFile> collectPreviews(@Nonnull Set<VirtualFile> grammars) {
+            List<VirtualFile> previews = new ArrayList<>();
+            Set<BnfFile> compiled = new HashSet<>();
+            PsiManager psiManager = PsiManager.getInstance(myProject);
+            for (VirtualFile file : FileEditorManager.getInstance(myProject).getOpenFiles()) {
+                ProgressManager.checkCanceled();
+                PsiFile psiFile = psiManager.findFile(file);
+                if (!(psiFile != null && psiFile.getLanguage() instanceof LivePreviewLanguage language)
+                    || !grammars.contains(language.getGrammarFile())) {
+                    continue;
+                }
+                previews.add(file);
+                BnfFile bnfFile = language.getGrammar(myProject);
+                if (bnfFile != null && compiled.add(bnfFile)) {
+                    LivePreviewPlan.getCached(bnfFile);
+                    ExpressionHelper.getCached(bnfFile);
+                    LivePreviewLexer.getTokenTable(bnfFile, language);
+                }
+            }
+            return previews;
+        }
+
+        @RequiredUIAccess
+        private void publish(long requestCount, @Nonnull Set<VirtualFile> grammars, @Nonnull List<VirtualFile> previews) {
+            // a later change has scheduled another update that will publish the previews
+            if (requestCount != myRequestCount.get() || myProject.isDisposed()) {
+                return;
+            }
+            myChangedGrammars.removeAll(grammars);
+            if (previews.isEmpty()) {
+                return;
+            }
+            FileContentUtil.reparseFiles(myProject, previews, false);
+            ReadAction.nonBlocking(() -> buildTrees(previews))
+                .expireWith(myProject)
+                .coalesceBy(this, previews)
+                .submit(AppExecutorUtil.getAppExecutorService());
+        }
+
+        @RequiredReadAction
+        private void buildTrees(@Nonnull List<VirtualFile> previews) {
+            PsiManager psiManager = PsiManager.getInstance(myProject);
+            for (VirtualFile file : previews) {
+                ProgressManager.checkCanceled();
+                PsiFile psiFile = file.isValid() ? psiManager.findFile(file) : null;
+                if (psiFile != null) {
+                    psiFile.getNode().getFirstChildNode();
+                }
             }
-            files.add(file);
         }
-        FileContentUtil.reparseFiles(project, files, false);
     }
 
     @RequiredReadAction
@@ -203,9 +285,7 @@ public class LivePreviewHelper {
             protected boolean generateNodeCall(
                 PsiBuilder builder,
                 int level,
-                BnfRule rule,
-                @Nullable BnfExpression node,
-                String nextName,
+                LivePreviewPlan.NodeCall call,
                 Map<String, GeneratedParserUtilBase.Parser> externalArguments
             ) {
                 int tokenStartOffset = builder.getCurrentOffset();
@@ -213,15 +293,15 @@ public class LivePreviewHelper {
                     builder.rawLookup(-1) == TokenType.WHITE_SPACE ? builder.rawTokenTypeStart(-1) : builder.getCurrentOffset();
                 String tokenText = builder.getTokenText();
                 int tokenEndOffset = tokenText == null ? tokenStartOffset : tokenStartOffset + tokenText.length();
-                boolean result = super.generateNodeCall(builder, level, rule, node, nextName, externalArguments);
+                boolean result = super.generateNodeCall(builder, level, call, externalArguments);
                 builder.getCurrentOffset(); // advance to the next token first
                 int finalOffset =
                     builder.rawLookup(-1) == TokenType.WHITE_SPACE ? builder.rawTokenTypeStart(-1) : builder.getCurrentOffset();
-                if (node != null) {
+                if (call.node != null) {
                     if (result && initialOffset <= caretOffset && finalOffset > caretOffset
                         || !result && initialOffset <= caretOffset && tokenEndOffset > caretOffset) {
-                        boolean inWhitespace = isTokenExpression(node) && initialOffset <= caretOffset && tokenStartOffset > caretOffset;
-                        if (!processor.process(node, result && !inWhitespace)) {
+                        boolean inWhitespace = call.tokenExpression && initialOffset <= caretOffset && tokenStartOffset > caretOffset;
+                        if (!processor.process(call.node, result && !inWhitespace)) {
                             throw new ProcessCanceledException();
                         }
                     }
@@ -38,25 +38,42 @@ import static org.intellij.grammar.generator.ParserGeneratorUtil.getRootAttribut
 import static org.intellij.grammar.impl.livePreview.LivePreviewParserDefinition.*;
 
 /**
+ * Tokens are matched independently of the preceding text, so the lexer can be restarted
+ * at any token start with {@link #INITIAL_STATE}, and editor highlighting re-lexes only the changed tokens.
+ *
  * @author gregsh
  */
 public class LivePreviewLexer extends LexerBase {
+    public static final int INITIAL_STATE = 0;
+
     private CharSequence myBuffer;
     private int myEndOffset;
     private int myPosition;
     private int myTokenEnd;
     private IElementType myTokenType;
 
+    // token found ahead while skipping bad characters
+    private int myNextStart = -1;
+    private int myNextEnd;
+    private IElementType myNextType;
+
+    private final TokenTable myTable;
     private final Token[] myTokens;
     private Matcher[] myMatchers;
+    private CharSequence myMatchedBuffer;
 
     public LivePreviewLexer(Project project, final LivePreviewLanguage language) {
         final BnfFile bnfFile = language.getGrammar(project);
 
-        myTokens = bnfFile == null ? new Token[0] : LanguageCachedValueUtil.getCachedValue(bnfFile, new CachedValueProvider<Token[]>() {
+        myTable = bnfFile == null ? new TokenTable(new Token[0]) : getTokenTable(bnfFile, language);
+        myTokens = myTable.tokens;
+    }
+
+    static TokenTable getTokenTable(@Nonnull final BnfFile bnfFile, @Nonnull final LivePreviewLanguage language) {
+        return LanguageCachedValueUtil.getCachedValue(bnfFile, new CachedValueProvider<TokenTable>() {
             @Nullable
             @Override
-            public Result<Token[]> compute() {
+            public Result<TokenTable> compute() {
                 Set<String> usedInGrammar = new LinkedHashSet<>();
                 Map<String, String> map = collectTokenPattern2Name(bnfFile, usedInGrammar);
 
@@ -68,7 +85,7 @@ public class LivePreviewLexer extends LexerBase {
 
                     tokens[i++] = new Token(pattern, tokenName, usedInGrammar.contains(tokenName), tokenConstantPrefix, language);
                 }
-                return Result.create(tokens, bnfFile);
+                return Result.create(new TokenTable(tokens), bnfFile);
             }
         });
     }
@@ -80,14 +97,23 @@ public class LivePreviewLexer extends LexerBase {
         myPosition = startOffset;
         myTokenEnd = myPosition;
         myTokenType = null;
-        myMatchers = new Matcher[myTokens.length];
-        for (int i = 0; i < myMatchers.length; i++) {
-            Pattern pattern = myTokens[i].pattern;
-            if (pattern == null) {
-                continue;
+        myNextStart = -1;
+        if (myMatchers == null) {
+            myMatchers = new Matcher[myTokens.length];
+            for (int i = 0; i < myMatchers.length; i++) {
+                Pattern pattern = myTokens[i].pattern;
+                myMatchers[i] = pattern == null ? null : pattern.matcher(buffer);
             }
-            myMatchers[i] = pattern.matcher(buffer);
         }
+        else if (myMatchedBuffer != buffer) {
+            // restarts on the same buffer keep the matchers, regions are set per match
+            for (Matcher matcher : myMatchers) {
+                if (matcher != null) {
+                    matcher.reset(buffer);
+                }
+            }
+        }
+        myMatchedBuffer = buffer;
         nextToken();
     }
 
@@ -97,10 +123,20 @@ public class LivePreviewLexer extends LexerBase {
             myTokenType = null;
             return;
         }
+        if (myNextStart == myPosition) {
+            myTokenEnd = myNextEnd;
+            myTokenType = myNextType;
+            myNextStart = -1;
+            return;
+        }
         if (!findAtOffset(myPosition)) {
             int nextOffset = myPosition;
             while (++nextOffset < myEndOffset) {
                 if (findAtOffset(nextOffset)) {
+                    // remember the token to not match it again on the next advance
+                    myNextStart = nextOffset;
+                    myNextEnd = myTokenEnd;
+                    myNextType = myTokenType;
                     break;
                 }
             }
@@ -112,7 +148,7 @@ public class LivePreviewLexer extends LexerBase {
     private boolean findAtOffset(int position) {
         myTokenEnd = position;
         myTokenType = null;
-        for (int i = 0; i < myMatchers.length; i++) {
+        for (int i : myTable.getCandidates(myBuffer.charAt(position))) {
             if (myMatchers[i] == null) {
                 continue;
             }
@@ -130,7 +166,7 @@ public class LivePreviewLexer extends LexerBase {
 
     @Override
     public int getState() {
-        return 0;
+        return INITIAL_STATE;
     }
 
     @Nullable
@@ -219,6 +255,48 @@ public class LivePreviewLexer extends LexerBase {
         }
     }
 
+    /**
+     * Tokens together with a first character dispatch table.
+     * Only the tokens that may start with the character are tried at an offset,
+     * in the token order, so the longest match semantics does not change.
+     */
+    static class TokenTable {
+        private static final int DISPATCH_SIZE = 128;
+
+        final Token[] tokens;
+        private final int[][] myCandidates = new int[DISPATCH_SIZE][]; // first character -> token indices
+        private final int[] myAllCandidates;
+
+        TokenTable(Token[] tokens) {
+            this.tokens = tokens;
+            int[] all = new int[tokens.length];
+            int count = 0;
+            for (int i = 0; i < tokens.length; i++) {
+                if (tokens[i].pattern != null) {
+                    all[count++] = i;
+                }
+            }
+            myAllCandidates = Arrays.copyOf(all, count);
+            for (int c = 0; c < DISPATCH_SIZE; c++) {
+                String text = String.valueOf((char)c);
+                int[] candidates = new int[count];
+                int size = 0;
+                for (int i : myAllCandidates) {
+                    Matcher matcher = tokens[i].pattern.matcher(text);
+                    // the pattern cannot match a text starting with the character if it failed before reaching the end
+                    if (matcher.lookingAt() && matcher.end() > 0 || matcher.hitEnd()) {
+                        candidates[size++] = i;
+                    }
+                }
+                myCandidates[c] = Arrays.copyOf(candidates, size);
+            }
+        }
+
+        int[] getCandidates(char c) {
+            return c < DISPATCH_SIZE ? myCandidates[c] : myAllCandidates;
+        }
+    }
+
     @Nullable
     private static IElementType guessDelegateType(@Nonnull String tokenName, @Nullable Pattern pattern, boolean usedInGrammar) {
         if (pattern != null) {
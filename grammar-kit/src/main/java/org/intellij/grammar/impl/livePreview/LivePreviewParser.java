@@ -29,19 +29,14 @@ import consulo.language.version.LanguageVersion;
 import consulo.project.Project;
 import consulo.util.collection.ContainerUtil;
 import consulo.util.collection.MultiMap;
-import consulo.util.collection.primitive.objects.ObjectIntMap;
-import consulo.util.collection.primitive.objects.ObjectMaps;
-import consulo.util.lang.StringUtil;
-import org.intellij.grammar.KnownAttribute;
-import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import consulo.util.collection.primitive.longs.LongSet;
+import consulo.util.collection.primitive.longs.LongSets;
 import org.intellij.grammar.generator.*;
 import org.intellij.grammar.psi.*;
-import org.intellij.grammar.psi.impl.GrammarUtil;
 
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import java.util.*;
-import java.util.function.Function;
 
 import static consulo.language.impl.parser.GeneratedParserUtilBase.*;
 import static org.intellij.grammar.generator.ParserGeneratorUtil.*;
@@ -53,27 +48,21 @@ import static org.intellij.grammar.psi.BnfTypes.*;
 public class LivePreviewParser implements PsiParser {
     private final BnfFile myFile;
     private final LivePreviewLanguage myLanguage;
-    private final Map<String, String> mySimpleTokens = new LinkedHashMap<>();
 
-    private final Map<String, IElementType> myRuleElementTypes = new HashMap<>();
     private final Map<String, IElementType> myTokenElementTypes = new HashMap<>();
+    private IElementType[] myTokenTypes = new IElementType[0]; // token id -> token type
+    private IElementType[] myRuleTypes = new IElementType[0]; // element type id -> rule element type
 
-    private GenOptions G;
+    private LivePreviewPlan myPlan;
     private BnfRule myGrammarRoot;
-    private RuleGraphHelper myGraphHelper;
-    private ExpressionHelper myExpressionHelper;
     private MultiMap<BnfRule, BnfRule> myRuleExtendsMap;
-    private String myTokenTypeText;
 
-    private final ObjectIntMap<BnfRule> myRuleNumbers = ObjectMaps.newObjectIntHashMap();
-    private BitSet[] myBitSets;
-    private final String myVersion;
+    private final LongSet myActiveRules = LongSets.newHashSet(); // (offset, rule number) pairs of rules being parsed
 
     @RequiredReadAction
     public LivePreviewParser(@Nullable Project project, LivePreviewLanguage language) {
         myLanguage = language;
         myFile = language.getGrammar(project);
-        myVersion = myFile.getVersion();
     }
 
     @Nonnull
@@ -91,15 +80,18 @@ public class LivePreviewParser implements PsiParser {
         ErrorState.get(builder).braces = braces.isEmpty() ? null : braces.toArray(new BracePair[braces.size()]);
         int level = 0;
         PsiBuilder.Marker mark = enter_section_(builder, level, _NONE_, null);
-        boolean result = myGrammarRoot != null && rule(builder, 1, myGrammarRoot, Collections.<String, Parser>emptyMap());
+        boolean result = myGrammarRoot != null && rule(builder, 1, myPlan.getRulePlan(myGrammarRoot), Collections.<String, Parser>emptyMap());
         exit_section_(builder, level, mark, root, result, true, TRUE_CONDITION);
         return builder.getTreeBuilt();
     }
 
     @Nullable
     private BracePair tryMakeBracePair(String s1, String s2, boolean structural) {
-        IElementType t1 = getTokenElementType(getTokenName(s1));
-        IElementType t2 = getTokenElementType(getTokenName(s2));
+        if (myPlan == null) {
+            return null;
+        }
+        IElementType t1 = getTokenElementType(myPlan.getTokenId(myPlan.getTokenName(s1)));
+        IElementType t2 = getTokenElementType(myPlan.getTokenId(myPlan.getTokenName(s2)));
         return t1 != null && t2 != null ? new BracePair(t1, t2, structural) : null;
     }
 
@@ -107,14 +99,9 @@ public class LivePreviewParser implements PsiParser {
         if (myFile == null) {
             return;
         }
-        myGrammarRoot = ContainerUtil.getFirstItem(myFile.getRules());
-        G = new GenOptions(myFile);
-        mySimpleTokens.putAll(LivePreviewLexer.collectTokenPattern2Name(myFile, null));
-        myGraphHelper = RuleGraphHelper.getCached(myFile);
-        myRuleExtendsMap = myGraphHelper.getRuleExtendsMap();
-        myExpressionHelper = ExpressionHelper.getCached(myFile);
-
-        myTokenTypeText = getRootAttribute(myVersion, myFile, KnownAttribute.ELEMENT_TYPE_PREFIX);
+        myPlan = LivePreviewPlan.getCached(myFile);
+        myGrammarRoot = myPlan.grammarRoot;
+        myRuleExtendsMap = RuleGraphHelper.getCached(myFile).getRuleExtendsMap();
 
         Lexer lexer = builder.getLexer();
         if (lexer instanceof LivePreviewLexer) {
@@ -122,37 +109,26 @@ public class LivePreviewParser implements PsiParser {
                 myTokenElementTypes.put(type.constantName, type.tokenType);
             }
         }
-        for (BnfRule rule : myFile.getRules()) {
-            String elementType = ParserGeneratorUtil.getElementType(myVersion, rule, G.generateElementCase);
-            if (StringUtil.isEmpty(elementType)) {
-                continue;
-            }
-            if (myRuleElementTypes.containsKey(elementType)) {
-                continue;
-            }
-            myRuleElementTypes.put(elementType, new LivePreviewElementType.RuleType(elementType, rule, myLanguage));
+        myTokenTypes = new IElementType[myPlan.tokenConstantNames.length];
+        for (int i = 0; i < myTokenTypes.length; i++) {
+            myTokenTypes[i] = myTokenElementTypes.get(myPlan.tokenConstantNames[i]);
         }
-        int count = 0;
-        for (BnfRule rule : myFile.getRules()) {
-            myRuleNumbers.putInt(rule, count++);
-        }
-        myBitSets = new BitSet[builder.getOriginalText().length() + 1];
-        for (int i = 0; i < myBitSets.length; i++) {
-            myBitSets[i] = new BitSet(count);
+        myRuleTypes = new IElementType[myPlan.elementTypeNames.length];
+        for (int i = 0; i < myRuleTypes.length; i++) {
+            myRuleTypes[i] = new LivePreviewElementType.RuleType(myPlan.elementTypeNames[i], myPlan.elementTypeRules[i], myLanguage);
         }
+        myActiveRules.clear();
     }
 
     @RequiredReadAction
-    private boolean rule(PsiBuilder builder, int level, BnfRule rule, Map<String, Parser> externalArguments) {
-        BitSet bitSet = myBitSets[builder.getCurrentOffset()];
-        int ruleNumber = myRuleNumbers.getInt(rule);
-        if (bitSet.get(ruleNumber)) {
-            builder.error("Endless recursion detected for '" + rule.getName() + "'");
+    private boolean rule(PsiBuilder builder, int level, LivePreviewPlan.ExpressionPlan rulePlan, Map<String, Parser> externalArguments) {
+        long key = ((long)builder.getCurrentOffset() << 32) | (rulePlan.ruleNumber & 0xFFFFFFFFL);
+        if (!myActiveRules.add(key)) {
+            builder.error("Endless recursion detected for '" + rulePlan.rule.getName() + "'");
             return false;
         }
-        bitSet.set(ruleNumber);
-        boolean result = expression(builder, level, rule, rule.getExpression(), rule.getName(), externalArguments);
-        bitSet.clear(ruleNumber);
+        boolean result = expression(builder, level, rulePlan, externalArguments);
+        myActiveRules.remove(key);
         return result;
     }
 
@@ -160,202 +136,90 @@ public class LivePreviewParser implements PsiParser {
     protected boolean expression(
         PsiBuilder builder,
         int level,
-        final BnfRule rule,
-        BnfExpression initialNode,
-        String funcName,
+        LivePreviewPlan.ExpressionPlan plan,
         Map<String, Parser> externalArguments
     ) {
-        boolean isRule = initialNode.getParent() == rule;
-        BnfExpression node = getNonTrivialNode(initialNode);
-
-        IElementType type = getEffectiveType(node);
-
-        boolean firstNonTrivial = node == ParserGeneratorUtil.Rule.firstNotTrivial(rule);
-        boolean isPrivate = !(isRule || firstNonTrivial) || ParserGeneratorUtil.Rule.isPrivate(rule) || myGrammarRoot == rule;
-        boolean isLeft = firstNonTrivial && ParserGeneratorUtil.Rule.isLeft(rule);
-        boolean isLeftInner = isLeft && (isPrivate || ParserGeneratorUtil.Rule.isInner(rule));
-        boolean isBranch = !isPrivate && Rule.isUpper(rule);
-        String recoverWhile = firstNonTrivial ? getAttribute(myVersion, rule, KnownAttribute.RECOVER_WHILE) : null;
-        Map<String, String> hooks =
-            firstNonTrivial ? getAttribute(myVersion, rule, KnownAttribute.HOOKS).asMap(myVersion) : Collections.emptyMap();
-        boolean canCollapse = !isPrivate && (!isLeft || isLeftInner) && firstNonTrivial && myGraphHelper.canCollapse(rule);
-
-        IElementType elementType = !isPrivate ? getRuleElementType(rule) : null;
-
-        boolean isSingleNode =
-            node instanceof BnfReferenceOrToken || node instanceof BnfLiteralExpression || node instanceof BnfExternalExpression;
-
-        List<BnfExpression> children = isSingleNode ? Collections.singletonList(node) : getChildExpressions(node);
-        String frameName =
-            !children.isEmpty() && firstNonTrivial && !Rule.isMeta(rule) ? getRuleDisplayName(myVersion, rule, !isPrivate) : null;
-
-        if (isSingleNode) {
-            children = Collections.singletonList(node);
-            if (isPrivate && !isLeftInner && recoverWhile == null && frameName == null) {
-                return generateNodeCall(builder, level, rule, node, getNextName(funcName, 0), externalArguments);
-            }
-            else {
-                type = BNF_SEQUENCE;
-            }
+        IElementType type = plan.type;
+        LivePreviewPlan.NodeCall[] calls = plan.calls;
+        String funcName = plan.funcName;
+
+        if (plan.delegate) {
+            return generateNodeCall(builder, level, calls[0], externalArguments);
         }
-        if (!children.isEmpty()) {
+        if (calls.length > 0) {
             if (!recursion_guard_(builder, level, funcName)) {
                 return false;
             }
         }
 
-        PinMatcher pinMatcher = new PinMatcher(myVersion, rule, type, firstNonTrivial ? rule.getName() : funcName);
         boolean pinApplied = false;
-        boolean alwaysTrue = type == BNF_OP_OPT || type == BNF_OP_ZEROMORE;
+        boolean alwaysTrue = plan.alwaysTrue;
 
-        boolean result_ = type == BNF_OP_ZEROMORE || type == BNF_OP_OPT || children.isEmpty();
-        boolean pinned = pinMatcher.active();
+        boolean result_ = type == BNF_OP_ZEROMORE || type == BNF_OP_OPT || calls.length == 0;
         boolean pinned_ = false;
 
-        int modifiers = 0;
-        if (canCollapse) {
-            modifiers |= _COLLAPSE_;
-        }
-        if (isLeftInner) {
-            modifiers |= _LEFT_INNER_;
-        }
-        else if (isLeft) {
-            modifiers |= _LEFT_;
-        }
-        if (type == BNF_OP_AND) {
-            modifiers |= _AND_;
-        }
-        else if (type == BNF_OP_NOT) {
-            modifiers |= _NOT_;
-        }
-        if (isBranch) {
-            modifiers |= _UPPER_;
-        }
+        IElementType elementType = getRuleElementType(plan.elementTypeId);
+        boolean sectionRequired = plan.sectionRequired;
+        boolean sectionRequiredSimple = plan.sectionRequiredSimple;
+        boolean sectionMaybeDropped = plan.sectionMaybeDropped;
 
         PsiBuilder.Marker marker_ = null;
-        boolean sectionRequired = !alwaysTrue || !isPrivate || isLeft || recoverWhile != null;
-        boolean sectionRequiredSimple = sectionRequired && modifiers == _NONE_ && recoverWhile == null && !(pinned || frameName != null);
-        boolean sectionMaybeDropped = sectionRequiredSimple && type == BNF_CHOICE && elementType == null
-            && children.stream().noneMatch(o -> ParserGeneratorUtil.isRollbackRequired(myVersion, o, myFile));
-
         if (sectionRequiredSimple) {
             if (!sectionMaybeDropped) {
                 marker_ = enter_section_(builder);
             }
         }
         else if (sectionRequired) {
-            marker_ = enter_section_(builder, level, modifiers, elementType, frameName);
+            marker_ = enter_section_(builder, level, plan.modifiers, elementType, plan.frameName);
         }
 
         int[] skip = {0};
-        for (int i = 0, p = 0, childrenSize = children.size(); i < childrenSize; i++) {
-            BnfExpression child = children.get(i);
+        for (int i = 0, p = 0, childrenSize = calls.length; i < childrenSize; i++) {
+            LivePreviewPlan.NodeCall call = calls[i];
 
             if (type == BNF_CHOICE) {
                 if (i == 0) {
-                    result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+                    result_ = generateNodeCall(builder, level, call, externalArguments);
                 }
                 else if (!result_) {
-                    result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+                    result_ = generateNodeCall(builder, level, call, externalArguments);
                 }
             }
             else if (type == BNF_SEQUENCE) {
                 if (skip[0] == 0) {
                     if (i == 0) {
-                        result_ = generateTokenSequenceCall(
-                            builder,
-                            level,
-                            rule,
-                            children,
-                            funcName,
-                            i,
-                            pinMatcher,
-                            pinApplied,
-                            skip,
-                            externalArguments
-                        );
+                        result_ = generateTokenSequenceCall(builder, level, plan, i, pinApplied, skip, externalArguments);
                     }
                     else {
-                        if (pinApplied && G.generateExtendedPin) {
+                        if (pinApplied && myPlan.G.generateExtendedPin) {
                             if (i == childrenSize - 1) {
                                 // do not report error for last child
                                 if (i == p + 1) {
-                                    result_ = result_ && generateTokenSequenceCall(
-                                        builder,
-                                        level,
-                                        rule,
-                                        children,
-                                        funcName,
-                                        i,
-                                        pinMatcher,
-                                        pinApplied,
-                                        skip,
-                                        externalArguments
-                                    );
+                                    result_ = result_
+                                        && generateTokenSequenceCall(builder, level, plan, i, pinApplied, skip, externalArguments);
                                 }
                                 else {
-                                    result_ = pinned_ && generateTokenSequenceCall(
-                                        builder,
-                                        level,
-                                        rule,
-                                        children,
-                                        funcName,
-                                        i,
-                                        pinMatcher,
-                                        pinApplied,
-                                        skip,
-                                        externalArguments
-                                    ) && result_;
+                                    result_ = pinned_
+                                        && generateTokenSequenceCall(builder, level, plan, i, pinApplied, skip, externalArguments)
+                                        && result_;
                                 }
                             }
                             else if (i == p + 1) {
                                 result_ = result_ && report_error_(
                                     builder,
-                                    generateTokenSequenceCall(
-                                        builder,
-                                        level,
-                                        rule,
-                                        children,
-                                        funcName,
-                                        i,
-                                        pinMatcher,
-                                        pinApplied,
-                                        skip,
-                                        externalArguments
-                                    )
+                                    generateTokenSequenceCall(builder, level, plan, i, pinApplied, skip, externalArguments)
                                 );
                             }
                             else {
                                 result_ = pinned_ && report_error_(
                                     builder,
-                                    generateTokenSequenceCall(
-                                        builder,
-                                        level,
-                                        rule,
-                                        children,
-                                        funcName,
-                                        i,
-                                        pinMatcher,
-                                        pinApplied,
-                                        skip,
-                                        externalArguments
-                                    )
+                                    generateTokenSequenceCall(builder, level, plan, i, pinApplied, skip, externalArguments)
                                 ) && result_;
                             }
                         }
                         else {
-                            result_ = result_ && generateTokenSequenceCall(
-                                builder,
-                                level,
-                                rule,
-                                children,
-                                funcName,
-                                i,
-                                pinMatcher,
-                                pinApplied,
-                                skip,
-                                externalArguments
-                            );
+                            result_ = result_
+                                && generateTokenSequenceCall(builder, level, plan, i, pinApplied, skip, externalArguments);
                         }
                     }
                 }
@@ -365,23 +229,23 @@ public class LivePreviewParser implements PsiParser {
                         p++; // shift pinned index as we skip
                     }
                 }
-                if (!pinApplied && pinMatcher.matches(i, child)) {
+                if (!pinApplied && plan.pinMatches[i]) {
                     pinApplied = true;
                     p = i;
                     pinned_ = result_; // pin = pinMatcher.pinValue
                 }
             }
             else if (type == BNF_OP_OPT) {
-                generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+                generateNodeCall(builder, level, call, externalArguments);
             }
             else if (type == BNF_OP_ONEMORE || type == BNF_OP_ZEROMORE) {
                 if (type == BNF_OP_ONEMORE) {
-                    result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+                    result_ = generateNodeCall(builder, level, call, externalArguments);
                 }
                 int pos = current_position_(builder);
                 //noinspection LoopConditionNotUpdatedInsideLoop
                 while (alwaysTrue || result_) {
-                    if (!generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments)) {
+                    if (!generateNodeCall(builder, level, call, externalArguments)) {
                         break;
                     }
                     if (!empty_element_parsed_guard_(builder, funcName, pos)) {
@@ -391,10 +255,10 @@ public class LivePreviewParser implements PsiParser {
                 }
             }
             else if (type == BNF_OP_AND) {
-                result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+                result_ = generateNodeCall(builder, level, call, externalArguments);
             }
             else if (type == BNF_OP_NOT) {
-                result_ = !generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+                result_ = !generateNodeCall(builder, level, call, externalArguments);
             }
             else {
                 addWarning(myFile.getProject(), "unexpected: " + type);
@@ -403,14 +267,8 @@ public class LivePreviewParser implements PsiParser {
 
         boolean success = alwaysTrue || result_ || pinned_;
 
-        if (!hooks.isEmpty()) {
-            for (Map.Entry<String, String> entry : hooks.entrySet()) {
-                if (entry.getValue() == null) {
-                    continue;
-                }
-                String name = ParserGeneratorUtil.toIdentifier(entry.getKey(), null, Case.UPPER);
-                LiveHooksHelper.registerHook(builder, name, entry.getValue());
-            }
+        for (int i = 0; i < plan.hookNames.length; i++) {
+            LiveHooksHelper.registerHook(builder, plan.hookNames[i], plan.hookValues[i]);
         }
         if (sectionRequiredSimple) {
             if (!sectionMaybeDropped) {
@@ -419,17 +277,17 @@ public class LivePreviewParser implements PsiParser {
         }
         else if (sectionRequired) {
             Parser recoverPredicate;
-            final BnfRule recoverRule = recoverWhile != null ? myFile.getRule(recoverWhile) : null;
-            if (BnfConstants.RECOVER_AUTO.equals(recoverWhile)) {
-                final IElementType[] nextTokens = generateAutoRecoverCall(rule);
+            final LivePreviewPlan.ExpressionPlan recoverPlan = plan.getRecoverPlan();
+            if (plan.recoverTokenIds != null) {
+                final IElementType[] nextTokens = generateAutoRecoverCall(plan.recoverTokenIds);
                 recoverPredicate = (builder12, level12) -> !GeneratedParserUtilBase.nextTokenIsFast(builder12, nextTokens);
             }
-            else if (Rule.isMeta(rule) && GrammarUtil.isDoubleAngles(recoverWhile)) {
-                recoverPredicate = externalArguments.get(recoverWhile.substring(2, recoverWhile.length() - 2));
+            else if (plan.recoverArgument != null) {
+                recoverPredicate = externalArguments.get(plan.recoverArgument);
             }
             else {
-                recoverPredicate = recoverRule == null ? null
-                    : (builder1, level1) -> rule(builder1, level1, recoverRule, Collections.emptyMap());
+                recoverPredicate = recoverPlan == null ? null
+                    : (builder1, level1) -> rule(builder1, level1, recoverPlan, Collections.emptyMap());
             }
             exit_section_(builder, level, marker_, alwaysTrue || result_, pinned_, recoverPredicate);
         }
@@ -462,64 +320,42 @@ public class LivePreviewParser implements PsiParser {
     protected boolean generateNodeCall(
         PsiBuilder builder,
         int level,
-        BnfRule rule,
-        @Nullable BnfExpression node,
-        String nextName,
+        LivePreviewPlan.NodeCall call,
         Map<String, Parser> externalArguments
     ) {
-        IElementType type = node == null ? BNF_REFERENCE_OR_TOKEN : getEffectiveType(node);
-        String text = node == null ? nextName : node.getText();
-        if (type == BNF_STRING) {
-            String value = StringUtil.stripQuotesAroundValue(text);
-            String attributeName = getTokenName(value);
-            if (attributeName != null) {
-                return generateConsumeToken(builder, attributeName);
-            }
-            return generateConsumeTextToken(builder, value);
-        }
-        else if (type == BNF_NUMBER) {
-            return generateConsumeTextToken(builder, text);
-        }
-        else if (type == BNF_REFERENCE_OR_TOKEN) {
-            BnfRule subRule = myFile.getRule(text);
-            if (subRule != null) {
-                //String method;
-                if (Rule.isExternal(subRule)) {
-                    // not supported
-                    return false;
-                    //method = generateExternalCall(rule, clause, GrammarUtil.getExternalRuleExpressions(subRule), nextName);
-                    //return method + "(builder_, level_ + 1" + clause.toString() + ")";
-                }
-                else {
-                    ExpressionHelper.ExpressionInfo info =
-                        ExpressionGeneratorHelper.getInfoForExpressionParsing(myExpressionHelper, subRule);
-                    if (info == null) {
-                        return rule(builder, level + 1, subRule, externalArguments);
-                    }
-                    else {
-                        int priority = info.getPriority(rule);
-                        int arg1Priority = subRule == info.rootRule ? -1 : info.getPriority(subRule);
-                        int argPriority = arg1Priority == -1
-                            ? (priority == info.nextPriority - 1 ? -1 : priority)
-                            : arg1Priority - 1;
-                        return generateExpressionRoot(builder, level, info, argPriority);
-                    }
-                }
-            }
-            return generateConsumeToken(builder, text);
-        }
-        else if (type == BNF_EXTERNAL_EXPRESSION) {
-            List<BnfExpression> expressions = ((BnfExternalExpression)node).getExpressionList();
-            if (expressions.size() == 1 && Rule.isMeta(rule)) {
-                Parser parser = externalArguments.get(node.getText());
+        switch (call.kind) {
+            case TOKEN:
+                return generateConsumeToken(builder, call.tokenId);
+            case TEXT_TOKEN:
+                return generateConsumeTextToken(builder, call.text);
+            case RULE:
+                return rule(builder, level + 1, call.getPlan(), externalArguments);
+            case EXPRESSION_ROOT:
+                return generateExpressionRoot(builder, level, call.getRootPlan(), call.argPriority);
+            case META_ARGUMENT:
+                Parser parser = externalArguments.get(call.text);
                 return parser != null && parser.parse(builder, level);
-            }
-            else {
-                return generateExternalCall(builder, level, rule, expressions, nextName, externalArguments);
-            }
-        }
-        else {
-            return expression(builder, level, rule, node, nextName, externalArguments);
+            case EXTERNAL_RULE:
+                return generateExternalCall(builder, level, call, externalArguments);
+            case EOF:
+                return GeneratedParserUtilBase.eof(builder, level);
+            case ANYTHING:
+                final LivePreviewPlan.NodeCall nested = call.nested;
+                parseAsTree(
+                    ErrorState.get(builder),
+                    builder,
+                    level + 1,
+                    DUMMY_BLOCK,
+                    true,
+                    TOKEN_ADVANCER,
+                    (builder13, level13) -> generateNodeCall(builder13, level13, nested, Collections.<String, Parser>emptyMap())
+                );
+                return true;
+            case EXPRESSION:
+                return expression(builder, level, call.getPlan(), externalArguments);
+            default:
+                // not supported
+                return false;
         }
     }
 
@@ -527,42 +363,28 @@ public class LivePreviewParser implements PsiParser {
     private boolean generateTokenSequenceCall(
         PsiBuilder builder,
         int level,
-        BnfRule rule,
-        List<BnfExpression> children,
-        String funcName,
+        LivePreviewPlan.ExpressionPlan plan,
         int startIndex,
-        PinMatcher pinMatcher,
         boolean pinApplied,
         int[] skip,
         Map<String, Parser> externalArguments
     ) {
-        BnfExpression nextChild = children.get(startIndex);
-        if (startIndex == children.size() - 1 || !isTokenExpression(nextChild)) {
-            return generateNodeCall(builder, level, rule, nextChild, funcName, externalArguments);
+        if (startIndex == plan.calls.length - 1 || !plan.tokenExpressions[startIndex]) {
+            return generateNodeCall(builder, level, plan.sequenceCalls[startIndex], externalArguments);
         }
         ArrayList<IElementType> list = new ArrayList<>();
         int pin = pinApplied ? -1 : 0;
-        for (int i = startIndex, len = children.size(); i < len; i++) {
-            BnfExpression child = children.get(i);
-            IElementType type = child.getNode().getElementType();
-            String text = child.getText();
-            String tokenName;
-            if (type == BNF_STRING && text.charAt(0) != '\"') {
-                tokenName = getTokenName(StringUtil.stripQuotesAroundValue(text));
-            }
-            else if (type == BNF_REFERENCE_OR_TOKEN && myFile.getRule(text) == null) {
-                tokenName = text;
-            }
-            else {
+        for (int i = startIndex, len = plan.calls.length; i < len; i++) {
+            if (!plan.sequenceTokens[i]) {
                 break;
             }
-            list.add(getTokenElementType(tokenName));
-            if (!pinApplied && pinMatcher.matches(i, child)) {
+            list.add(getTokenElementType(plan.sequenceTokenIds[i]));
+            if (!pinApplied && plan.pinMatches[i]) {
                 pin = i - startIndex + 1;
             }
         }
         if (list.size() < 2) {
-            return generateNodeCall(builder, level, rule, nextChild, funcName, externalArguments);
+            return generateNodeCall(builder, level, plan.sequenceCalls[startIndex], externalArguments);
         }
         skip[0] = list.size() - 1;
         return consumeTokens(builder, pin, list.toArray(new IElementType[list.size()]));
@@ -572,139 +394,42 @@ public class LivePreviewParser implements PsiParser {
     private boolean generateExternalCall(
         PsiBuilder builder,
         int level,
-        final BnfRule rule,
-        List<BnfExpression> expressions,
-        final String nextName,
+        LivePreviewPlan.NodeCall call,
         final Map<String, Parser> externalArguments
     ) {
-        List<BnfExpression> callParameters = expressions;
-        List<BnfExpression> metaParameters = Collections.emptyList();
-        List<String> metaParameterNames;
-        String method = expressions.size() > 0 ? expressions.get(0).getText() : null;
-        final BnfRule targetRule = method == null ? null : myFile.getRule(method);
-        // handle external rule call: substitute and merge arguments from external expression and rule definition
-        if (targetRule != null) {
-            metaParameterNames = GrammarUtil.collectMetaParameters(targetRule, targetRule.getExpression());
-            if (Rule.isExternal(targetRule)) {
-                // not supported
-                return false;
-                //callParameters = GrammarUtil.getExternalRuleExpressions(targetRule);
-                //metaParameters = expressions;
-                //method = callParameters.get(0).getText();
-                //if (metaParameterNames.size() < expressions.size() - 1) {
-                //  callParameters = ContainerUtil.concat(callParameters, expressions.subList(metaParameterNames.size() + 1, expressions.size()));
-                //}
-            }
-        }
-        else {
-            // Hard-coded extensions:
-            if ("eof".equals(method) && expressions.size() == 1) {
-                return GeneratedParserUtilBase.eof(builder, level);
-            }
-            else if ("anything".equals(method) && expressions.size() == 2) {
-                final BnfExpression finalNested = expressions.get(1);
-                parseAsTree(
-                    ErrorState.get(builder),
-                    builder,
-                    level + 1,
-                    DUMMY_BLOCK,
-                    true,
-                    TOKEN_ADVANCER,
-                    (builder13, level13) -> generateNodeCall(
-                        builder13,
-                        level13,
-                        rule,
-                        finalNested,
-                        getNextName(nextName, 0),
-                        Collections.<String, Parser>emptyMap()
-                    )
-                );
-                return true;
-            }
-            // not supported
-            return false;
-        }
-        if (callParameters.size() <= 1) {
-            return rule(builder, level, targetRule, externalArguments);
+        if (call.arguments == null) {
+            return rule(builder, level, call.getPlan(), externalArguments);
         }
         Map<String, Parser> argumentMap = new HashMap<>();
-        for (int i = 1, len = Math.min(callParameters.size(), metaParameterNames.size() + 1); i < len; i++) {
-            BnfExpression nested = callParameters.get(i);
-            String argument = nested.getText();
-            final String argNextName;
-            final String argName;
-            int metaIdx;
-            if (argument.startsWith("<<") && (metaIdx = metaParameterNames.indexOf(argument)) > -1) {
-                nested = metaParameters.get(metaIdx + 1);
-                argument = nested.getText();
-                argNextName = getNextName(nextName, metaIdx);
-                argName = argument;
-            }
-            else {
-                argNextName = getNextName(nextName, i - 1);
-                argName = metaParameterNames.get(i - 1);
+        for (LivePreviewPlan.ExternalArgument argument : call.arguments) {
+            if (argument.parameter != null) {
+                argumentMap.put(argument.name, externalArguments.get(argument.parameter));
             }
-            final BnfExpression finalNested = nested;
-            if (nested instanceof BnfReferenceOrToken || nested instanceof BnfLiteralExpression) {
-                final BnfRule argRule = nested instanceof BnfReferenceOrToken ? myFile.getRule(argument) : null;
-                argumentMap.put(argName, (builder14, level14) -> {
-                    if (argRule != null) {
-                        return rule(builder14, level14, argRule, Collections.<String, Parser>emptyMap());
-                    }
-                    else {
-                        return generateNodeCall(
-                            builder14,
-                            level14,
-                            rule,
-                            finalNested,
-                            nextName,
-                            Collections.<String, Parser>emptyMap()
-                        );
-                    }
-                });
-            }
-            else if (nested instanceof BnfExternalExpression) {
-                List<BnfExpression> expressionList = ((BnfExternalExpression)nested).getExpressionList();
-                boolean metaRule = Rule.isMeta(rule);
-                if (metaRule && expressionList.size() == 1) {
-                    // parameter
-                    argumentMap.put(argName, externalArguments.get(expressionList.get(0).getText()));
-                }
-                else {
-                    argumentMap.put(
-                        argName,
-                        (builder1, level1) ->
-                            generateNodeCall(builder1, level1, targetRule, finalNested, argNextName, externalArguments)
-                    );
-                }
+            else if (argument.argRule != null) {
+                final LivePreviewPlan.ExpressionPlan argPlan = argument.getRulePlan();
+                argumentMap.put(argument.name, (builder14, level14) -> rule(builder14, level14, argPlan, Collections.<String, Parser>emptyMap()));
             }
             else {
-                argumentMap.put(
-                    argName,
-                    (builder12, level12) ->
-                        generateNodeCall(builder12, level12, targetRule, finalNested, argNextName, externalArguments)
-                );
+                final LivePreviewPlan.NodeCall argCall = argument.call;
+                final Map<String, Parser> arguments = argument.callerArguments ? externalArguments : Collections.<String, Parser>emptyMap();
+                argumentMap.put(argument.name, (builder1, level1) -> generateNodeCall(builder1, level1, argCall, arguments));
             }
         }
-        return rule(builder, level, targetRule, argumentMap);
-    }
-
-    private String getTokenName(String value) {
-        return mySimpleTokens.get(value);
+        return rule(builder, level, call.getPlan(), argumentMap);
     }
 
     @Nullable
-    private IElementType getRuleElementType(BnfRule rule) {
-        String elementType = ParserGeneratorUtil.getElementType(myVersion, rule, G.generateElementCase);
-        return StringUtil.isEmpty(elementType) ? null : myRuleElementTypes.get(elementType);
+    private IElementType getRuleElementType(int elementTypeId) {
+        return elementTypeId < 0 ? null : myRuleTypes[elementTypeId];
     }
 
-    private IElementType getTokenElementType(String token) {
-        return token == null ? null : myTokenElementTypes.get(myTokenTypeText + token.toUpperCase());
+    @Nullable
+    private IElementType getTokenElementType(int tokenId) {
+        return tokenId < 0 ? null : myTokenTypes[tokenId];
     }
 
-    private boolean generateConsumeToken(PsiBuilder builder, String tokenName) {
-        IElementType tokenType = getTokenElementType(tokenName);
+    private boolean generateConsumeToken(PsiBuilder builder, int tokenId) {
+        IElementType tokenType = getTokenElementType(tokenId);
         return tokenType != null && generateConsumeToken(builder, tokenType);
     }
 
@@ -716,74 +441,44 @@ public class LivePreviewParser implements PsiParser {
         return consumeToken(builder, tokenText);
     }
 
-    @RequiredReadAction
-    protected boolean isTokenExpression(BnfExpression node) {
-        return node instanceof BnfLiteralExpression
-            || node instanceof BnfReferenceOrToken && myFile.getRule(node.getText()) == null;
-    }
-
     // Expression Generator Helper part
+    @RequiredReadAction
     private boolean generateExpressionRoot(
         PsiBuilder builder,
         int level,
-        ExpressionHelper.ExpressionInfo info,
+        LivePreviewPlan.ExpressionRootPlan root,
         int priority_
     ) {
-        Map<String, List<ExpressionHelper.OperatorInfo>> opCalls = new LinkedHashMap<>();
-        for (BnfRule rule : info.priorityMap.keySet()) {
-            ExpressionHelper.OperatorInfo operator = info.operatorMap.get(rule);
-            String opCall = getNextName(operator.rule.getName(), 0);
-            List<ExpressionHelper.OperatorInfo> list = opCalls.get(opCall);
-            if (list == null) {
-                opCalls.put(opCall, list = new ArrayList<>(2));
-            }
-            list.add(operator);
-        }
         // main entry
-        String methodName = info.rootRule.getName();
-        String kernelMethodName = getNextName(methodName, 0);
-        String frameName = quote(ParserGeneratorUtil.getRuleDisplayName(myVersion, info.rootRule, true));
-        if (!recursion_guard_(builder, level, methodName)) {
+        if (!recursion_guard_(builder, level, root.methodName)) {
             return false;
         }
         boolean result_ = false;
         boolean pinned_;
-        PsiBuilder.Marker marker_ = enter_section_(builder, level, _NONE_, frameName);
+        PsiBuilder.Marker marker_ = enter_section_(builder, level, _NONE_, root.frameName);
 
         boolean first = true;
-        Iterable<ExpressionHelper.OperatorInfo> filter = filter(
-            opCalls,
-            ExpressionHelper.OperatorType.ATOM,
-            ExpressionHelper.OperatorType.PREFIX
-        );
-        for (ExpressionHelper.OperatorInfo operator : filter) {
+        for (LivePreviewPlan.NodeCall call : root.prefixCalls) {
             if (first || !result_) {
-                result_ = generateNodeCall(
-                    builder,
-                    level,
-                    operator.rule,
-                    null,
-                    operator.rule.getName(),
-                    Collections.<String, Parser>emptyMap()
-                );
+                result_ = generateNodeCall(builder, level, call, Collections.<String, Parser>emptyMap());
             }
             first = false;
         }
 
         pinned_ = result_;
-        result_ = result_ && generateKernelMethod(builder, level + 1, kernelMethodName, info, opCalls, priority_);
+        result_ = result_ && generateKernelMethod(builder, level + 1, root, priority_);
         exit_section_(builder, level, marker_, null, result_, pinned_, null);
         return result_ || pinned_;
     }
 
+    @RequiredReadAction
     private boolean generateKernelMethod(
         PsiBuilder builder,
         int level,
-        String methodName,
-        ExpressionHelper.ExpressionInfo info,
-        Map<String, List<ExpressionHelper.OperatorInfo>> opCalls,
+        LivePreviewPlan.ExpressionRootPlan root,
         int priority_
     ) {
+        String methodName = root.kernelMethodName;
         if (!recursion_guard_(builder, level, methodName)) {
             return false;
         }
@@ -798,82 +493,43 @@ public class LivePreviewParser implements PsiParser {
                 return false;
             }
 
-            Iterable<ExpressionHelper.OperatorInfo> filter = filter(
-                opCalls,
-                ExpressionHelper.OperatorType.BINARY,
-                ExpressionHelper.OperatorType.N_ARY,
-                ExpressionHelper.OperatorType.POSTFIX
-            );
-            for (ExpressionHelper.OperatorInfo operator : filter) {
-                int priority = info.getPriority(operator.rule);
-                int arg2Priority = operator.arg2 == null ? -1 : info.getPriority(operator.arg2);
-                int argPriority = arg2Priority == -1 ? priority : arg2Priority - 1;
-
+            for (LivePreviewPlan.OperatorPlan operator : root.operators) {
                 if (marker_ == null) {
                     marker_ = builder.mark();
                 }
 
-                if (priority_ < priority &&
-                    (operator.arg1 == null || ((LighterASTNode)left_marker_).getTokenType() == getRuleElementType(operator.arg1)) &&
-                    generateNodeCall(
-                        builder,
-                        level,
-                        info.rootRule,
-                        operator.operator,
-                        getNextName(operator.rule.getName(), 0),
-                        Collections.<String, Parser>emptyMap()
-                    )) {
-
-                    IElementType elementType = getRuleElementType(operator.rule);
-                    boolean rightAssociative =
-                        ParserGeneratorUtil.getAttribute(myVersion, operator.rule, KnownAttribute.RIGHT_ASSOCIATIVE);
+                if (priority_ < operator.priority &&
+                    (!operator.checkArg1 || ((LighterASTNode)left_marker_).getTokenType() == getRuleElementType(operator.arg1TypeId)) &&
+                    generateNodeCall(builder, level, operator.operatorCall, Collections.<String, Parser>emptyMap())) {
+
+                    IElementType elementType = getRuleElementType(operator.elementTypeId);
+                    int argPriority = operator.argPriority;
                     if (operator.type == ExpressionHelper.OperatorType.BINARY) {
                         result_ = report_error_(
                             builder,
-                            generateExpressionRoot(builder, level, info, (rightAssociative ? argPriority - 1 : argPriority))
+                            generateExpressionRoot(builder, level, root, (operator.rightAssociative ? argPriority - 1 : argPriority))
                         );
-                        if (operator.tail != null) {
+                        if (operator.tailCall != null) {
                             result_ = report_error_(
                                 builder,
-                                generateNodeCall(
-                                    builder,
-                                    level,
-                                    operator.rule,
-                                    operator.tail,
-                                    getNextName(operator.rule.getName(), 1),
-                                    Collections.<String, Parser>emptyMap()
-                                )
+                                generateNodeCall(builder, level, operator.tailCall, Collections.<String, Parser>emptyMap())
                             ) && result_;
                         }
                     }
                     else if (operator.type == ExpressionHelper.OperatorType.N_ARY) {
                         int nary_pos = current_position_(builder);
                         while (true) {
-                            result_ = report_error_(builder, generateExpressionRoot(builder, level, info, argPriority));
-                            if (operator.tail != null) {
+                            result_ = report_error_(builder, generateExpressionRoot(builder, level, root, argPriority));
+                            if (operator.tailCall != null) {
                                 result_ = report_error_(
                                     builder,
-                                    generateNodeCall(
-                                        builder,
-                                        level,
-                                        operator.rule,
-                                        operator.tail,
-                                        getNextName(operator.rule.getName(), 1),
-                                        Collections.<String, Parser>emptyMap()
-                                    )
+                                    generateNodeCall(builder, level, operator.tailCall, Collections.<String, Parser>emptyMap())
                                 ) && result_;
                             }
-                            if (!result_ || !generateNodeCall(
-                                builder,
-                                level,
-                                info.rootRule,
-                                operator.operator,
-                                getNextName(operator.rule.getName(), 0),
-                                Collections.<String, Parser>emptyMap()
-                            )) {
+                            if (!result_ || !generateNodeCall(builder, level, operator.operatorCall, Collections.<String, Parser>emptyMap())) {
                                 break;
                             }
-                            if (!empty_element_parsed_guard_(builder, operator.operator.getText(), nary_pos)) {
+                            if (!empty_element_parsed_guard_(builder, operator.operatorText, nary_pos)) {
                                 break;
                             }
                             nary_pos = current_position_(builder);
@@ -885,7 +541,7 @@ public class LivePreviewParser implements PsiParser {
                     marker_.drop();
                     left_marker_.precede().done(elementType);
                     marker_ = null;
-                    if (!empty_element_parsed_guard_(builder, info.rootRule.getName(), pos)) {
+                    if (!empty_element_parsed_guard_(builder, root.methodName, pos)) {
                         break main;
                     }
                     pos = current_position_(builder);
@@ -898,51 +554,15 @@ public class LivePreviewParser implements PsiParser {
         return result_;
     }
 
-    private static Iterable<ExpressionHelper.OperatorInfo> filter(
-        final Map<String, List<ExpressionHelper.OperatorInfo>> opCalls,
-        final ExpressionHelper.OperatorType... operatorTypes
-    ) {
-        return ContainerUtil.mapNotNull(
-            opCalls.keySet(),
-            new Function<String, ExpressionHelper.OperatorInfo>() {
-                @Nullable
-                @Override
-                public ExpressionHelper.OperatorInfo apply(String opCall) {
-                    return ContainerUtil.getFirstItem(
-                        ExpressionGeneratorHelper.findOperators(opCalls.get(opCall), operatorTypes)
-                    );
-                }
-            }
-        );
-    }
-
-    /**
-     * @noinspection StringEquality
-     */
-    private IElementType[] generateAutoRecoverCall(BnfRule rule) {
-        BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
-        Set<BnfExpression> nextExprSet = analyzer.calcNext(rule).keySet();
-        Set<String> nextSet = analyzer.asStrings(nextExprSet);
-        List<IElementType> tokenTypes = new ArrayList<>(nextSet.size());
-
-        for (String s : nextSet) {
-            if (myFile.getRule(s) != null) {
-                continue; // ignore left recursion
-            }
-            if (s == BnfFirstNextAnalyzer.MATCHES_EOF || s == BnfFirstNextAnalyzer.MATCHES_NOTHING) {
-                continue;
-            }
-
-            boolean unknown = s == BnfFirstNextAnalyzer.MATCHES_ANY;
-            IElementType t = unknown ? null : getTokenElementType(getTokenName(StringUtil.stripQuotesAroundValue(s)));
-            if (t != null) {
-                tokenTypes.add(t);
-            }
-            else {
-                tokenTypes.clear();
-                break;
+    private IElementType[] generateAutoRecoverCall(int[] tokenIds) {
+        IElementType[] tokenTypes = new IElementType[tokenIds.length];
+        for (int i = 0; i < tokenIds.length; i++) {
+            IElementType t = getTokenElementType(tokenIds[i]);
+            if (t == null) {
+                return new IElementType[0];
             }
+            tokenTypes[i] = t;
         }
-        return tokenTypes.toArray(new IElementType[tokenTypes.size()]);
+        return tokenTypes;
     }
 }
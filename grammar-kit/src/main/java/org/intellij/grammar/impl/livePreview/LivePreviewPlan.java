@@ -0,0 +1,727 @@
+/*
+ * Copyright 2011-present Greg Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.impl.livePreview;
+
+import consulo.annotation.access.RequiredReadAction;
+import consulo.application.util.CachedValueProvider;
+import consulo.language.ast.IElementType;
+import consulo.language.psi.util.LanguageCachedValueUtil;
+import consulo.language.psi.util.PsiTreeUtil;
+import consulo.util.collection.ContainerUtil;
+import consulo.util.collection.primitive.objects.ObjectIntMap;
+import consulo.util.collection.primitive.objects.ObjectMaps;
+import consulo.util.lang.StringUtil;
+import org.intellij.grammar.KnownAttribute;
+import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.generator.*;
+import org.intellij.grammar.psi.*;
+import org.intellij.grammar.psi.impl.GrammarUtil;
+
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static consulo.language.impl.parser.GeneratedParserUtilBase._AND_;
+import static consulo.language.impl.parser.GeneratedParserUtilBase._COLLAPSE_;
+import static consulo.language.impl.parser.GeneratedParserUtilBase._LEFT_;
+import static consulo.language.impl.parser.GeneratedParserUtilBase._LEFT_INNER_;
+import static consulo.language.impl.parser.GeneratedParserUtilBase._NONE_;
+import static consulo.language.impl.parser.GeneratedParserUtilBase._NOT_;
+import static consulo.language.impl.parser.GeneratedParserUtilBase._UPPER_;
+import static org.intellij.grammar.generator.ParserGeneratorUtil.*;
+import static org.intellij.grammar.psi.BnfTypes.*;
+
+/**
+ * Grammar compiled for {@link LivePreviewParser}.
+ * <p/>
+ * Everything the parser used to derive from PSI and attributes on each call is computed once per grammar modification:
+ * options, simple tokens, element type names and an {@link ExpressionPlan} per parsed expression.
+ * Each child of an expression plan is a {@link NodeCall} with its call target already resolved:
+ * a token id, a sub-rule plan, an expression root or an external call. Rules, element types and tokens get dense ids,
+ * so the parser resolves them by array index instead of names.
+ * Plans are compiled on first use, calls link the plans they lead to on their first call, and never change afterwards.
+ *
+ * @author gregsh
+ */
+class LivePreviewPlan {
+    final GenOptions G;
+    final String version;
+    @Nullable
+    final BnfRule grammarRoot;
+    final Map<String, String> simpleTokens;
+    final String tokenTypeText;
+    final String[] elementTypeNames; // element type id -> name
+    final BnfRule[] elementTypeRules; // element type id -> first rule of the element type
+    final String[] tokenConstantNames; // token id -> lexer token constant name
+
+    private final BnfFile myFile;
+    private final RuleGraphHelper myGraphHelper;
+    private final ExpressionHelper myExpressionHelper;
+    private final ObjectIntMap<BnfRule> myRuleNumbers = ObjectMaps.newObjectIntHashMap(); // rule -> number + 1
+    private final ObjectIntMap<BnfRule> myElementTypeIds = ObjectMaps.newObjectIntHashMap(); // rule -> id + 1
+    private final ObjectIntMap<String> myTokenIds = ObjectMaps.newObjectIntHashMap(); // token name -> id + 1
+    private final ConcurrentMap<PlanKey, ExpressionPlan> myPlans = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ExpressionHelper.ExpressionInfo, ExpressionRootPlan> myRootPlans = new ConcurrentHashMap<>();
+
+    @RequiredReadAction
+    static LivePreviewPlan getCached(@Nonnull BnfFile file) {
+        return LanguageCachedValueUtil.getCachedValue(file, () -> CachedValueProvider.Result.create(new LivePreviewPlan(file), file));
+    }
+
+    @RequiredReadAction
+    private LivePreviewPlan(@Nonnull BnfFile file) {
+        myFile = file;
+        version = file.getVersion();
+        G = new GenOptions(file);
+        grammarRoot = ContainerUtil.getFirstItem(file.getRules());
+        simpleTokens = Collections.unmodifiableMap(LivePreviewLexer.collectTokenPattern2Name(file, null));
+        tokenTypeText = getRootAttribute(version, file, KnownAttribute.ELEMENT_TYPE_PREFIX);
+        myGraphHelper = RuleGraphHelper.getCached(file);
+        myExpressionHelper = ExpressionHelper.getCached(file);
+
+        Map<String, Integer> elementTypeIds = new HashMap<>();
+        List<String> elementTypeNames = new ArrayList<>();
+        List<BnfRule> elementTypeRules = new ArrayList<>();
+        int count = 0;
+        for (BnfRule rule : file.getRules()) {
+            myRuleNumbers.putInt(rule, ++count);
+            String elementType = ParserGeneratorUtil.getElementType(version, rule, G.generateElementCase);
+            if (StringUtil.isEmpty(elementType)) {
+                continue;
+            }
+            int id = elementTypeIds.computeIfAbsent(elementType, o -> {
+                elementTypeNames.add(elementType);
+                elementTypeRules.add(rule);
+                return elementTypeNames.size() - 1;
+            });
+            myElementTypeIds.putInt(rule, id + 1);
+        }
+        this.elementTypeNames = elementTypeNames.toArray(new String[elementTypeNames.size()]);
+        this.elementTypeRules = elementTypeRules.toArray(new BnfRule[elementTypeRules.size()]);
+
+        // every token a call may consume: simple tokens and references to no rule
+        List<String> tokenConstantNames = new ArrayList<>();
+        for (String tokenName : simpleTokens.values()) {
+            addToken(tokenName, tokenConstantNames);
+        }
+        for (BnfReferenceOrToken reference : PsiTreeUtil.findChildrenOfType(file, BnfReferenceOrToken.class)) {
+            String text = reference.getText();
+            if (file.getRule(text) == null) {
+                addToken(text, tokenConstantNames);
+            }
+        }
+        this.tokenConstantNames = tokenConstantNames.toArray(new String[tokenConstantNames.size()]);
+    }
+
+    private void addToken(@Nonnull String tokenName, @Nonnull List<String> tokenConstantNames) {
+        if (myTokenIds.getInt(tokenName) == 0) {
+            tokenConstantNames.add(tokenTypeText + tokenName.toUpperCase());
+            myTokenIds.putInt(tokenName, tokenConstantNames.size());
+        }
+    }
+
+    /**
+     * Returns the id of the element type of the rule, or {@code -1} if the rule has none.
+     */
+    int getElementTypeId(@Nullable BnfRule rule) {
+        return rule == null ? -1 : myElementTypeIds.getInt(rule) - 1;
+    }
+
+    /**
+     * Returns the id of the token, or {@code -1} if no call may consume it.
+     */
+    int getTokenId(@Nullable String tokenName) {
+        return tokenName == null ? -1 : myTokenIds.getInt(tokenName) - 1;
+    }
+
+    @Nullable
+    String getTokenName(String value) {
+        return simpleTokens.get(value);
+    }
+
+    @Nonnull
+    @RequiredReadAction
+    ExpressionPlan getRulePlan(@Nonnull BnfRule rule) {
+        return getPlan(rule, rule.getExpression(), rule.getName());
+    }
+
+    @Nonnull
+    @RequiredReadAction
+    ExpressionPlan getPlan(@Nonnull BnfRule rule, @Nonnull BnfExpression initialNode, @Nonnull String funcName) {
+        PlanKey key = new PlanKey(rule, initialNode, funcName);
+        ExpressionPlan plan = myPlans.get(key);
+        if (plan == null) {
+            plan = new ExpressionPlan(rule, initialNode, funcName);
+            ExpressionPlan prev = myPlans.putIfAbsent(key, plan);
+            if (prev != null) {
+                plan = prev;
+            }
+        }
+        return plan;
+    }
+
+    @Nonnull
+    @RequiredReadAction
+    ExpressionRootPlan getRootPlan(@Nonnull ExpressionHelper.ExpressionInfo info) {
+        ExpressionRootPlan plan = myRootPlans.get(info);
+        if (plan == null) {
+            plan = new ExpressionRootPlan(info);
+            ExpressionRootPlan prev = myRootPlans.putIfAbsent(info, plan);
+            if (prev != null) {
+                plan = prev;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Compiled form of {@link LivePreviewParser#expression}: the expression called from a rule under a function name.
+     */
+    class ExpressionPlan {
+        final BnfRule rule;
+        final int ruleNumber; // number of the rule in the file, used by the endless recursion check of a rule plan
+        final BnfExpression node;
+        final String funcName;
+        final IElementType type;
+        /**
+         * The expression is a plain call of the single child, no section is required.
+         */
+        final boolean delegate;
+        final NodeCall[] calls;
+        final NodeCall[] sequenceCalls; // calls of a child that is not a part of a consumeTokens() sequence
+        final boolean[] tokenExpressions;
+        final boolean[] sequenceTokens; // child may be a part of a consumeTokens() sequence
+        final int[] sequenceTokenIds;
+        final boolean[] pinMatches;
+        final boolean pinned;
+        final boolean alwaysTrue;
+        final int modifiers;
+        final int elementTypeId;
+        @Nullable
+        final String frameName;
+        final boolean sectionRequired;
+        final boolean sectionRequiredSimple;
+        final boolean sectionMaybeDropped;
+        @Nullable
+        final String recoverWhile;
+        @Nullable
+        final BnfRule recoverRule;
+        @Nullable
+        final String recoverArgument;
+        @Nullable
+        final int[] recoverTokenIds;
+        final String[] hookNames;
+        final String[] hookValues;
+
+        private volatile ExpressionPlan myRecoverPlan;
+
+        @RequiredReadAction
+        private ExpressionPlan(BnfRule rule, BnfExpression initialNode, String funcName) {
+            this.rule = rule;
+            this.funcName = funcName;
+            ruleNumber = myRuleNumbers.getInt(rule) - 1;
+            boolean isRule = initialNode.getParent() == rule;
+            node = getNonTrivialNode(initialNode);
+
+            IElementType type = getEffectiveType(node);
+
+            boolean firstNonTrivial = node == Rule.firstNotTrivial(rule);
+            boolean isPrivate = !(isRule || firstNonTrivial) || Rule.isPrivate(rule) || grammarRoot == rule;
+            boolean isLeft = firstNonTrivial && Rule.isLeft(rule);
+            boolean isLeftInner = isLeft && (isPrivate || Rule.isInner(rule));
+            boolean isBranch = !isPrivate && Rule.isUpper(rule);
+            recoverWhile = firstNonTrivial ? getAttribute(version, rule, KnownAttribute.RECOVER_WHILE) : null;
+            Map<String, String> hooks =
+                firstNonTrivial ? getAttribute(version, rule, KnownAttribute.HOOKS).asMap(version) : Collections.emptyMap();
+            boolean canCollapse = !isPrivate && (!isLeft || isLeftInner) && firstNonTrivial && myGraphHelper.canCollapse(rule);
+
+            elementTypeId = !isPrivate ? getElementTypeId(rule) : -1;
+
+            boolean isSingleNode =
+                node instanceof BnfReferenceOrToken || node instanceof BnfLiteralExpression || node instanceof BnfExternalExpression;
+
+            List<BnfExpression> children = isSingleNode ? Collections.singletonList(node) : getChildExpressions(node);
+            frameName =
+                !children.isEmpty() && firstNonTrivial && !Rule.isMeta(rule) ? getRuleDisplayName(version, rule, !isPrivate) : null;
+
+            delegate = isSingleNode && isPrivate && !isLeftInner && recoverWhile == null && frameName == null;
+            if (isSingleNode && !delegate) {
+                type = BNF_SEQUENCE;
+            }
+            this.type = type;
+
+            int size = children.size();
+            calls = new NodeCall[size];
+            sequenceCalls = type == BNF_SEQUENCE ? new NodeCall[size] : calls;
+            tokenExpressions = new boolean[size];
+            sequenceTokens = new boolean[size];
+            sequenceTokenIds = new int[size];
+            pinMatches = new boolean[size];
+            PinMatcher pinMatcher = new PinMatcher(version, rule, type, firstNonTrivial ? rule.getName() : funcName);
+            for (int i = 0; i < size; i++) {
+                BnfExpression child = children.get(i);
+                calls[i] = new NodeCall(rule, child, getNextName(funcName, i));
+                if (type == BNF_SEQUENCE) {
+                    sequenceCalls[i] = new NodeCall(rule, child, funcName);
+                }
+                tokenExpressions[i] = isTokenExpression(child);
+                pinMatches[i] = pinMatcher.matches(i, child);
+                IElementType childType = child.getNode().getElementType();
+                String text = child.getText();
+                sequenceTokenIds[i] = -1;
+                if (childType == BNF_STRING && text.charAt(0) != '\"') {
+                    sequenceTokens[i] = true;
+                    sequenceTokenIds[i] = getTokenId(getTokenName(StringUtil.stripQuotesAroundValue(text)));
+                }
+                else if (childType == BNF_REFERENCE_OR_TOKEN && myFile.getRule(text) == null) {
+                    sequenceTokens[i] = true;
+                    sequenceTokenIds[i] = getTokenId(text);
+                }
+            }
+            pinned = pinMatcher.active();
+            alwaysTrue = type == BNF_OP_OPT || type == BNF_OP_ZEROMORE;
+
+            int modifiers = 0;
+            if (canCollapse) {
+                modifiers |= _COLLAPSE_;
+            }
+            if (isLeftInner) {
+                modifiers |= _LEFT_INNER_;
+            }
+            else if (isLeft) {
+                modifiers |= _LEFT_;
+            }
+            if (type == BNF_OP_AND) {
+                modifiers |= _AND_;
+            }
+            else if (type == BNF_OP_NOT) {
+                modifiers |= _NOT_;
+            }
+            if (isBranch) {
+                modifiers |= _UPPER_;
+            }
+            this.modifiers = modifiers;
+
+            sectionRequired = !alwaysTrue || !isPrivate || isLeft || recoverWhile != null;
+            sectionRequiredSimple = sectionRequired && modifiers == _NONE_ && recoverWhile == null && !(pinned || frameName != null);
+            sectionMaybeDropped = sectionRequiredSimple && type == BNF_CHOICE && elementTypeId == -1
+                && children.stream().noneMatch(o -> isRollbackRequired(version, o, myFile));
+
+            recoverRule = recoverWhile != null ? myFile.getRule(recoverWhile) : null;
+            recoverArgument = recoverWhile != null && Rule.isMeta(rule) && GrammarUtil.isDoubleAngles(recoverWhile)
+                ? recoverWhile.substring(2, recoverWhile.length() - 2) : null;
+            recoverTokenIds = BnfConstants.RECOVER_AUTO.equals(recoverWhile) ? collectAutoRecoverTokens(rule) : null;
+
+            List<String> names = new ArrayList<>(hooks.size());
+            List<String> values = new ArrayList<>(hooks.size());
+            for (Map.Entry<String, String> entry : hooks.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                names.add(toIdentifier(entry.getKey(), null, Case.UPPER));
+                values.add(entry.getValue());
+            }
+            hookNames = names.toArray(new String[names.size()]);
+            hookValues = values.toArray(new String[values.size()]);
+        }
+
+        @Nullable
+        @RequiredReadAction
+        ExpressionPlan getRecoverPlan() {
+            ExpressionPlan plan = myRecoverPlan;
+            if (plan == null && recoverRule != null) {
+                myRecoverPlan = plan = getRulePlan(recoverRule);
+            }
+            return plan;
+        }
+    }
+
+    enum CallKind {
+        TOKEN,
+        TEXT_TOKEN,
+        RULE,
+        EXPRESSION_ROOT,
+        META_ARGUMENT,
+        EXTERNAL_RULE,
+        EOF,
+        ANYTHING,
+        EXPRESSION,
+        UNSUPPORTED
+    }
+
+    /**
+     * Compiled form of {@link LivePreviewParser#generateNodeCall}: the call of an expression from a rule
+     * with the call target resolved. Plans of sub-rules and nested expressions are linked on the first call.
+     */
+    class NodeCall {
+        final CallKind kind;
+        final BnfRule rule;
+        @Nullable
+        final BnfExpression node;
+        final String nextName;
+        final boolean tokenExpression;
+        final int tokenId; // TOKEN
+        @Nullable
+        final String text; // TEXT_TOKEN, META_ARGUMENT
+        @Nullable
+        final BnfRule subRule; // RULE, EXTERNAL_RULE
+        @Nullable
+        final ExpressionHelper.ExpressionInfo info; // EXPRESSION_ROOT
+        final int argPriority; // EXPRESSION_ROOT
+        @Nullable
+        final NodeCall nested; // ANYTHING
+        @Nullable
+        final ExternalArgument[] arguments; // EXTERNAL_RULE, null to pass the caller arguments
+
+        private volatile ExpressionPlan myPlan;
+        private volatile ExpressionRootPlan myRootPlan;
+
+        @RequiredReadAction
+        NodeCall(@Nonnull BnfRule rule, @Nullable BnfExpression node, @Nonnull String nextName) {
+            this.rule = rule;
+            this.node = node;
+            this.nextName = nextName;
+            tokenExpression = node != null && isTokenExpression(node);
+            IElementType type = node == null ? BNF_REFERENCE_OR_TOKEN : getEffectiveType(node);
+            String text = node == null ? nextName : node.getText();
+            CallKind kind = CallKind.UNSUPPORTED;
+            int tokenId = -1;
+            String callText = null;
+            BnfRule subRule = null;
+            ExpressionHelper.ExpressionInfo info = null;
+            int argPriority = 0;
+            NodeCall nested = null;
+            ExternalArgument[] arguments = null;
+            if (type == BNF_STRING) {
+                String value = StringUtil.stripQuotesAroundValue(text);
+                String tokenName = getTokenName(value);
+                if (tokenName != null) {
+                    kind = CallKind.TOKEN;
+                    tokenId = getTokenId(tokenName);
+                }
+                else {
+                    kind = CallKind.TEXT_TOKEN;
+                    callText = value;
+                }
+            }
+            else if (type == BNF_NUMBER) {
+                kind = CallKind.TEXT_TOKEN;
+                callText = text;
+            }
+            else if (type == BNF_REFERENCE_OR_TOKEN) {
+                subRule = myFile.getRule(text);
+                if (subRule == null) {
+                    kind = CallKind.TOKEN;
+                    tokenId = getTokenId(text);
+                }
+                else if (!Rule.isExternal(subRule)) { // external rules are not supported
+                    info = ExpressionGeneratorHelper.getInfoForExpressionParsing(myExpressionHelper, subRule);
+                    if (info == null) {
+                        kind = CallKind.RULE;
+                    }
+                    else {
+                        kind = CallKind.EXPRESSION_ROOT;
+                        int priority = info.getPriority(rule);
+                        int arg1Priority = subRule == info.rootRule ? -1 : info.getPriority(subRule);
+                        argPriority = arg1Priority == -1
+                            ? (priority == info.nextPriority - 1 ? -1 : priority)
+                            : arg1Priority - 1;
+                    }
+                }
+            }
+            else if (type == BNF_EXTERNAL_EXPRESSION) {
+                List<BnfExpression> expressions = ((BnfExternalExpression)node).getExpressionList();
+                if (expressions.size() == 1 && Rule.isMeta(rule)) {
+                    kind = CallKind.META_ARGUMENT;
+                    callText = text;
+                }
+                else {
+                    String method = expressions.size() > 0 ? expressions.get(0).getText() : null;
+                    BnfRule targetRule = method == null ? null : myFile.getRule(method);
+                    if (targetRule != null) {
+                        if (!Rule.isExternal(targetRule)) { // external rules are not supported
+                            kind = CallKind.EXTERNAL_RULE;
+                            subRule = targetRule;
+                            arguments = expressions.size() <= 1 ? null : compileArguments(rule, targetRule, expressions, nextName);
+                        }
+                    }
+                    // Hard-coded extensions:
+                    else if ("eof".equals(method) && expressions.size() == 1) {
+                        kind = CallKind.EOF;
+                    }
+                    else if ("anything".equals(method) && expressions.size() == 2) {
+                        kind = CallKind.ANYTHING;
+                        nested = new NodeCall(rule, expressions.get(1), getNextName(nextName, 0));
+                    }
+                }
+            }
+            else {
+                kind = CallKind.EXPRESSION;
+            }
+            this.kind = kind;
+            this.tokenId = tokenId;
+            this.text = callText;
+            this.subRule = subRule;
+            this.info = info;
+            this.argPriority = argPriority;
+            this.nested = nested;
+            this.arguments = arguments;
+        }
+
+        /**
+         * Returns the plan of the sub-rule or of the nested expression.
+         */
+        @Nonnull
+        @RequiredReadAction
+        ExpressionPlan getPlan() {
+            ExpressionPlan plan = myPlan;
+            if (plan == null) {
+                myPlan = plan = kind == CallKind.EXPRESSION ? LivePreviewPlan.this.getPlan(rule, node, nextName) : getRulePlan(subRule);
+            }
+            return plan;
+        }
+
+        @Nonnull
+        @RequiredReadAction
+        ExpressionRootPlan getRootPlan() {
+            ExpressionRootPlan plan = myRootPlan;
+            if (plan == null) {
+                myRootPlan = plan = LivePreviewPlan.this.getRootPlan(info);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * Argument of an external rule call: a meta parameter of the caller, a rule or an expression to call.
+     */
+    class ExternalArgument {
+        final String name;
+        @Nullable
+        final String parameter; // passed from the caller arguments
+        @Nullable
+        final BnfRule argRule; // called with no arguments
+        @Nullable
+        final NodeCall call;
+        final boolean callerArguments; // the call gets the caller arguments, not empty ones
+
+        private volatile ExpressionPlan myRulePlan;
+
+        ExternalArgument(String name, @Nullable String parameter, @Nullable BnfRule argRule, @Nullable NodeCall call, boolean callerArguments) {
+            this.name = name;
+            this.parameter = parameter;
+            this.argRule = argRule;
+            this.call = call;
+            this.callerArguments = callerArguments;
+        }
+
+        @Nonnull
+        @RequiredReadAction
+        ExpressionPlan getRulePlan() {
+            ExpressionPlan plan = myRulePlan;
+            if (plan == null) {
+                myRulePlan = plan = LivePreviewPlan.this.getRulePlan(argRule);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * Substitutes and merges arguments from the external expression and the rule definition.
+     */
+    @Nonnull
+    @RequiredReadAction
+    private ExternalArgument[] compileArguments(
+        @Nonnull BnfRule rule,
+        @Nonnull BnfRule targetRule,
+        @Nonnull List<BnfExpression> callParameters,
+        @Nonnull String nextName
+    ) {
+        List<BnfExpression> metaParameters = Collections.emptyList();
+        List<String> metaParameterNames = GrammarUtil.collectMetaParameters(targetRule, targetRule.getExpression());
+        List<ExternalArgument> result = new ArrayList<>();
+        for (int i = 1, len = Math.min(callParameters.size(), metaParameterNames.size() + 1); i < len; i++) {
+            BnfExpression nested = callParameters.get(i);
+            String argument = nested.getText();
+            String argNextName;
+            String argName;
+            int metaIdx;
+            if (argument.startsWith("<<") && (metaIdx = metaParameterNames.indexOf(argument)) > -1) {
+                nested = metaParameters.get(metaIdx + 1);
+                argument = nested.getText();
+                argNextName = getNextName(nextName, metaIdx);
+                argName = argument;
+            }
+            else {
+                argNextName = getNextName(nextName, i - 1);
+                argName = metaParameterNames.get(i - 1);
+            }
+            if (nested instanceof BnfReferenceOrToken || nested instanceof BnfLiteralExpression) {
+                BnfRule argRule = nested instanceof BnfReferenceOrToken ? myFile.getRule(argument) : null;
+                result.add(argRule != null
+                    ? new ExternalArgument(argName, null, argRule, null, false)
+                    : new ExternalArgument(argName, null, null, new NodeCall(rule, nested, nextName), false));
+            }
+            else if (nested instanceof BnfExternalExpression && Rule.isMeta(rule)
+                && ((BnfExternalExpression)nested).getExpressionList().size() == 1) {
+                // parameter
+                String parameter = ((BnfExternalExpression)nested).getExpressionList().get(0).getText();
+                result.add(new ExternalArgument(argName, parameter, null, null, true));
+            }
+            else {
+                result.add(new ExternalArgument(argName, null, null, new NodeCall(targetRule, nested, argNextName), true));
+            }
+        }
+        return result.toArray(new ExternalArgument[result.size()]);
+    }
+
+    /**
+     * Compiled form of the expression parsing entry of {@link LivePreviewParser}: operators grouped and ordered
+     * the way the generated parser checks them.
+     */
+    class ExpressionRootPlan {
+        final ExpressionHelper.ExpressionInfo info;
+        final String methodName;
+        final String kernelMethodName;
+        final String frameName;
+        final NodeCall[] prefixCalls; // atoms and prefix operators
+        final OperatorPlan[] operators; // binary, n-ary and postfix operators
+
+        @RequiredReadAction
+        private ExpressionRootPlan(@Nonnull ExpressionHelper.ExpressionInfo info) {
+            this.info = info;
+            Map<String, List<ExpressionHelper.OperatorInfo>> opCalls = new LinkedHashMap<>();
+            for (BnfRule rule : info.priorityMap.keySet()) {
+                ExpressionHelper.OperatorInfo operator = info.operatorMap.get(rule);
+                String opCall = getNextName(operator.rule.getName(), 0);
+                opCalls.computeIfAbsent(opCall, o -> new ArrayList<>(2)).add(operator);
+            }
+            methodName = info.rootRule.getName();
+            kernelMethodName = getNextName(methodName, 0);
+            frameName = quote(ParserGeneratorUtil.getRuleDisplayName(version, info.rootRule, true));
+
+            List<NodeCall> prefixCalls = new ArrayList<>();
+            List<OperatorPlan> operators = new ArrayList<>();
+            for (List<ExpressionHelper.OperatorInfo> list : opCalls.values()) {
+                ExpressionHelper.OperatorInfo prefix = ContainerUtil.getFirstItem(ExpressionGeneratorHelper.findOperators(
+                    list, ExpressionHelper.OperatorType.ATOM, ExpressionHelper.OperatorType.PREFIX));
+                if (prefix != null) {
+                    prefixCalls.add(new NodeCall(prefix.rule, null, prefix.rule.getName()));
+                }
+                ExpressionHelper.OperatorInfo operator = ContainerUtil.getFirstItem(ExpressionGeneratorHelper.findOperators(
+                    list, ExpressionHelper.OperatorType.BINARY, ExpressionHelper.OperatorType.N_ARY, ExpressionHelper.OperatorType.POSTFIX));
+                if (operator != null) {
+                    operators.add(new OperatorPlan(info, operator));
+                }
+            }
+            this.prefixCalls = prefixCalls.toArray(new NodeCall[prefixCalls.size()]);
+            this.operators = operators.toArray(new OperatorPlan[operators.size()]);
+        }
+    }
+
+    class OperatorPlan {
+        final ExpressionHelper.OperatorType type;
+        final int priority;
+        final int argPriority;
+        final boolean checkArg1;
+        final int arg1TypeId;
+        final int elementTypeId;
+        final boolean rightAssociative;
+        final NodeCall operatorCall;
+        @Nullable
+        final NodeCall tailCall;
+        final String operatorText;
+
+        @RequiredReadAction
+        private OperatorPlan(@Nonnull ExpressionHelper.ExpressionInfo info, @Nonnull ExpressionHelper.OperatorInfo operator) {
+            type = operator.type;
+            priority = info.getPriority(operator.rule);
+            int arg2Priority = operator.arg2 == null ? -1 : info.getPriority(operator.arg2);
+            argPriority = arg2Priority == -1 ? priority : arg2Priority - 1;
+            checkArg1 = operator.arg1 != null;
+            arg1TypeId = getElementTypeId(operator.arg1);
+            elementTypeId = getElementTypeId(operator.rule);
+            rightAssociative = ParserGeneratorUtil.getAttribute(version, operator.rule, KnownAttribute.RIGHT_ASSOCIATIVE);
+            String name = operator.rule.getName();
+            operatorCall = new NodeCall(info.rootRule, operator.operator, getNextName(name, 0));
+            tailCall = operator.tail == null ? null : new NodeCall(operator.rule, operator.tail, getNextName(name, 1));
+            operatorText = operator.operator.getText();
+        }
+    }
+
+    @RequiredReadAction
+    boolean isTokenExpression(BnfExpression node) {
+        return node instanceof BnfLiteralExpression
+            || node instanceof BnfReferenceOrToken && myFile.getRule(node.getText()) == null;
+    }
+
+    /**
+     * Returns ids of the tokens that may follow the rule, or an empty array if any other token may follow it.
+     * Id {@code -1} stands for a token unknown to the lexer.
+     *
+     * @noinspection StringEquality
+     */
+    private int[] collectAutoRecoverTokens(BnfRule rule) {
+        BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+        Set<BnfExpression> nextExprSet = analyzer.calcNext(rule).keySet();
+        Set<String> nextSet = analyzer.asStrings(nextExprSet);
+        List<String> tokenNames = new ArrayList<>(nextSet.size());
+
+        for (String s : nextSet) {
+            if (myFile.getRule(s) != null) {
+                continue; // ignore left recursion
+            }
+            if (s == BnfFirstNextAnalyzer.MATCHES_EOF || s == BnfFirstNextAnalyzer.MATCHES_NOTHING) {
+                continue;
+            }
+            if (s == BnfFirstNextAnalyzer.MATCHES_ANY) {
+                tokenNames.clear();
+                break;
+            }
+            tokenNames.add(getTokenName(StringUtil.stripQuotesAroundValue(s)));
+        }
+        int[] result = new int[tokenNames.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getTokenId(tokenNames.get(i));
+        }
+        return result;
+    }
+
+    private static final class PlanKey {
+        final BnfRule rule;
+        final BnfExpression node;
+        final String funcName;
+
+        PlanKey(BnfRule rule, BnfExpression node, String funcName) {
+            this.rule = rule;
+            this.node = node;
+            this.funcName = funcName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PlanKey key && rule == key.rule && node == key.node && funcName.equals(key.funcName);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * System.identityHashCode(rule) + System.identityHashCode(node)) * 31 + funcName.hashCode();
+        }
+    }
+}